@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import android.database.CrossProcessCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+
+/**
+ * Reads the rows of a timeline cursor in blocks of primitive arrays.<p />
+ *
+ * Windowed cursors (like the ones backed by SQLite or by a content provider) are read
+ * straight from their {@link CursorWindow}, filled by the cursor a whole window at a time,
+ * so no cursor movement is needed per row. Any other cursor falls back to the per-cell
+ * cursor access.
+ */
+final class CursorBlockReader {
+
+    static final int BLOCK_SIZE = 512;
+
+    private final Cursor mCursor;
+    private final int mSeries;
+    private final int mCount;
+    private final long[] mTimestamps;
+    private final double[] mValues;
+
+    CursorBlockReader(Cursor cursor, int series, int count) {
+        mCursor = cursor;
+        mSeries = series;
+        mCount = count;
+        mTimestamps = new long[BLOCK_SIZE];
+        mValues = new double[BLOCK_SIZE * series];
+    }
+
+    long timestampAt(int index) {
+        return mTimestamps[index];
+    }
+
+    double valueAt(int index, int serie) {
+        return mValues[index * mSeries + serie];
+    }
+
+    /**
+     * Reads a block of rows starting at the cursor position passed as argument.
+     *
+     * @return the number of rows read, or {@code 0} if there are no more rows.
+     */
+    int read(int position) {
+        if (position >= mCount || !mCursor.moveToPosition(position)) {
+            return 0;
+        }
+
+        final CursorWindow window = obtainWindow(position);
+        if (window != null) {
+            return readWindow(window, position);
+        }
+        return readCursor(position);
+    }
+
+    private CursorWindow obtainWindow(int position) {
+        if (!(mCursor instanceof CrossProcessCursor)) {
+            return null;
+        }
+
+        // The cursor was already moved, so its window (if any) holds the current row
+        final CursorWindow window = ((CrossProcessCursor) mCursor).getWindow();
+        if (window == null || position < window.getStartPosition()
+                || position >= window.getStartPosition() + window.getNumRows()) {
+            return null;
+        }
+        return window;
+    }
+
+    private int readWindow(CursorWindow window, int position) {
+        final int end = Math.min(window.getStartPosition() + window.getNumRows(), mCount);
+        final int count = Math.min(end - position, BLOCK_SIZE);
+        final int columns = mSeries + 1;
+        for (int n = 0; n < count; n++) {
+            final int row = position + n;
+            mTimestamps[n] = window.getLong(row, 0);
+            for (int i = 1; i < columns; i++) {
+                mValues[n * mSeries + i - 1] = window.getDouble(row, i);
+            }
+        }
+        return count;
+    }
+
+    private int readCursor(int position) {
+        final int count = Math.min(mCount - position, BLOCK_SIZE);
+        final int columns = mSeries + 1;
+        int n = 0;
+        do {
+            mTimestamps[n] = mCursor.getLong(0);
+            for (int i = 1; i < columns; i++) {
+                mValues[n * mSeries + i - 1] = mCursor.getDouble(i);
+            }
+            n++;
+        } while (n < count && mCursor.moveToNext());
+        return n;
+    }
+}
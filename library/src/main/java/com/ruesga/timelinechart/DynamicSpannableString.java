@@ -36,6 +36,12 @@ class DynamicSpannableString implements CharSequence, GetChars, Spannable {
     private int[] mSpanData;
     private int mSpanCount;
 
+    // Cached empty span arrays by kind (they are immutable, so they can be shared)
+    private static final int MAX_CACHED_KINDS = 8;
+    private final Class[] mKinds = new Class[MAX_CACHED_KINDS];
+    private final Object[][] mEmptySpans = new Object[MAX_CACHED_KINDS][];
+    private int mKindCount;
+
     DynamicSpannableString(CharSequence source) {
         this(source, 0, source.length());
     }
@@ -293,7 +299,7 @@ class DynamicSpannableString implements CharSequence, GetChars, Spannable {
         }
 
         if (count == 0) {
-            return (T[]) Array.newInstance(kind, 0);
+            return (T[]) obtainEmptySpans(kind);
         }
         if (count == 1) {
             ret = (Object[]) Array.newInstance(kind, 1);
@@ -331,6 +337,23 @@ class DynamicSpannableString implements CharSequence, GetChars, Spannable {
         return limit;
     }
 
+    private Object[] obtainEmptySpans(Class kind) {
+        int i = 0;
+        while (i < mKindCount && mKinds[i] != kind) {
+            i++;
+        }
+        if (i == mKindCount) {
+            if (mKindCount == MAX_CACHED_KINDS) {
+                // Too many kinds. Just don't cache them
+                return (Object[]) Array.newInstance(kind, 0);
+            }
+            mKinds[i] = kind;
+            mEmptySpans[i] = (Object[]) Array.newInstance(kind, 0);
+            mKindCount++;
+        }
+        return mEmptySpans[i];
+    }
+
     private void sendSpanAdded(Object what, int start, int end) {
         SpanWatcher[] spans = getSpans(start, end, SpanWatcher.class);
         for (SpanWatcher watcher : spans) {
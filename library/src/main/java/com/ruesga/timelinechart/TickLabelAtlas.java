@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+/**
+ * A texture atlas of rasterized tick labels. Every label is drawn once in a cell of a
+ * shared bitmap, keyed by the tick format and the timestamp of the label, so it can be
+ * drawn later by just blitting the region of its cell. When all the cells are in use,
+ * the least recently used label is replaced.<p />
+ *
+ * The labels are rasterized with the color of the text, so the atlas must be rebuilt
+ * if the color, the size of the cells or the formats of the labels change.<p />
+ *
+ * This class is not thread-safe. It must only be used from the UI thread.
+ */
+final class TickLabelAtlas {
+
+    private static final int MAX_ATLAS_WIDTH = 2048;
+
+    private final int mCellWidth;
+    private final int mCellHeight;
+    private final int mColumns;
+    private final int mCapacity;
+    private final int mColor;
+
+    private final Bitmap mBitmap;
+    private final Canvas mCanvas;
+    private final Rect mCell = new Rect();
+
+    // Maps the labels to their cells
+    private final TickLabelIndex mIndex;
+    private int mEvictions;
+
+    TickLabelAtlas(int cellWidth, int cellHeight, int capacity, int color) {
+        mCellWidth = cellWidth;
+        mCellHeight = cellHeight;
+        mColumns = Math.max(1, Math.min(capacity, MAX_ATLAS_WIDTH / cellWidth));
+        mCapacity = capacity;
+        mColor = color;
+
+        final int rows = (capacity + mColumns - 1) / mColumns;
+        mBitmap = Bitmap.createBitmap(
+                mColumns * cellWidth, rows * cellHeight, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+
+        mIndex = new TickLabelIndex(capacity);
+    }
+
+    /**
+     * Whether the atlas can hold labels of the size and color passed as arguments.
+     */
+    boolean matches(int cellWidth, int cellHeight, int capacity, int color) {
+        return !mBitmap.isRecycled() && mCellWidth == cellWidth && mCellHeight == cellHeight
+                && mCapacity >= capacity && mColor == color;
+    }
+
+    Bitmap bitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * Returns the number of labels replaced by other labels since the atlas was created.
+     */
+    int evictions() {
+        return mEvictions;
+    }
+
+    /**
+     * Returns the cell of a label, or -1 if the label isn't rasterized in the atlas.
+     */
+    int find(int format, long timestamp) {
+        final int cell = mIndex.find(format, timestamp);
+        if (cell != -1) {
+            mIndex.touch(cell);
+        }
+        return cell;
+    }
+
+    /**
+     * Rasterizes a label in the atlas, replacing the least recently used label if there
+     * are no free cells.
+     *
+     * @param top the vertical offset of the label inside the cell.
+     * @return the cell of the label.
+     */
+    int add(int format, long timestamp, TickLabelText label, float top, Paint paint) {
+        if (mIndex.isFull()) {
+            mEvictions++;
+        }
+        final int cell = mIndex.add(format, timestamp);
+
+        // Clear the cell and draw the label
+        computeCell(cell, mCell);
+        final int restoreCount = mCanvas.save();
+        mCanvas.clipRect(mCell);
+        mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        label.draw(mCanvas, mCell.left, mCell.top + top, paint);
+        mCanvas.restoreToCount(restoreCount);
+        return cell;
+    }
+
+    /**
+     * Computes the region of the atlas bitmap of a cell.
+     */
+    void computeCell(int cell, Rect out) {
+        final int x = (cell % mColumns) * mCellWidth;
+        final int y = (cell / mColumns) * mCellHeight;
+        out.set(x, y, x + mCellWidth, y + mCellHeight);
+    }
+
+    void recycle() {
+        mBitmap.recycle();
+    }
+}
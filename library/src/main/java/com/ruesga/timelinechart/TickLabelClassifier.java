@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Classifies timestamps by the tick label format that better fits them (day, hour and
+ * minutes, or seconds), using epoch arithmetic over the local time instead of a
+ * {@link java.util.Calendar}.<p />
+ *
+ * The offsets of the time zone are cached per day, including the instant of the
+ * transition (ie: a DST change) of the days where the offset changes, so the
+ * {@link TimeZone} is only queried the first time a day is classified.<p />
+ *
+ * This class is not thread-safe. Every thread must use its own instance.
+ */
+final class TickLabelClassifier {
+
+    static final int SECONDS_FORMAT = 0;
+    static final int HOUR_MINUTES_FORMAT = 1;
+    static final int DAY_FORMAT = 2;
+
+    private static final long MINUTE = 60000L;
+    private static final long DAY = 86400000L;
+    private static final int CACHE_SIZE = 256;
+
+    private final TimeZone mTimeZone;
+
+    // Direct-mapped cache of the offsets of a day (by day since epoch in UTC)
+    private final long[] mDays = new long[CACHE_SIZE];
+    private final int[] mStartOffsets = new int[CACHE_SIZE];
+    private final int[] mEndOffsets = new int[CACHE_SIZE];
+    private final long[] mTransitions = new long[CACHE_SIZE];
+
+    TickLabelClassifier(TimeZone timeZone) {
+        mTimeZone = timeZone;
+        Arrays.fill(mDays, Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns a new classifier of the same time zone, to be used from another thread.
+     */
+    TickLabelClassifier copy() {
+        return new TickLabelClassifier((TimeZone) mTimeZone.clone());
+    }
+
+    /**
+     * Returns whether both classifiers classify the timestamps in the same time zone.
+     */
+    boolean hasSameTimeZone(TickLabelClassifier other) {
+        return mTimeZone.getID().equals(other.mTimeZone.getID())
+                && mTimeZone.hasSameRules(other.mTimeZone);
+    }
+
+    /**
+     * Returns the tick label format of the timestamp passed as argument.
+     */
+    int classify(long timestamp) {
+        final long local = timestamp + offsetAt(timestamp);
+        if (floorMod(local, DAY) == 0) {
+            return DAY_FORMAT;
+        }
+        if (floorMod(local, MINUTE) == 0) {
+            return HOUR_MINUTES_FORMAT;
+        }
+        return SECONDS_FORMAT;
+    }
+
+    private int offsetAt(long timestamp) {
+        final long day = floorDiv(timestamp, DAY);
+        final int slot = (int) floorMod(day, CACHE_SIZE);
+        if (mDays[slot] != day) {
+            cacheDay(slot, day);
+        }
+        return timestamp < mTransitions[slot] ? mStartOffsets[slot] : mEndOffsets[slot];
+    }
+
+    private void cacheDay(int slot, long day) {
+        final long start = day * DAY;
+        final long end = start + DAY - 1;
+        final int startOffset = mTimeZone.getOffset(start);
+        final int endOffset = mTimeZone.getOffset(end);
+        long transition = Long.MAX_VALUE;
+        if (startOffset != endOffset) {
+            // Find the first instant of the day with the new offset
+            long low = start + 1;
+            long high = end;
+            while (low < high) {
+                final long mid = low + ((high - low) >> 1);
+                if (mTimeZone.getOffset(mid) == startOffset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            transition = low;
+        }
+        mDays[slot] = day;
+        mStartOffsets[slot] = startOffset;
+        mEndOffsets[slot] = endOffset;
+        mTransitions[slot] = transition;
+    }
+
+    private static long floorDiv(long x, long y) {
+        final long q = x / y;
+        return (x % y != 0 && (x < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        final long m = x % y;
+        return m < 0 ? m + y : m;
+    }
+}
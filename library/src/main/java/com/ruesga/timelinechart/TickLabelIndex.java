@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import java.util.Arrays;
+
+/**
+ * A LRU hash index of tick labels, which maps the tick format and the timestamp of a label
+ * to an entry in {@code [0, capacity)}. Keys are stored in primitive arrays, so lookups
+ * don't allocate any object. When the index is full, new keys replace the least recently
+ * used entry.<p />
+ *
+ * This class is not thread-safe.
+ */
+final class TickLabelIndex {
+
+    private final int mCapacity;
+    private int mSize;
+
+    private final long[] mTimestamps;
+    private final int[] mFormats;
+
+    // Hash index: the first entry of every bucket, and the next entry of the same bucket
+    private final int[] mBuckets;
+    private final int[] mChain;
+
+    // Access order: most recently used entries first
+    private final int[] mPrevious;
+    private final int[] mNext;
+    private int mHead = -1;
+    private int mTail = -1;
+
+    TickLabelIndex(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mFormats = new int[capacity];
+        mChain = new int[capacity];
+        mPrevious = new int[capacity];
+        mNext = new int[capacity];
+        int buckets = 1;
+        while (buckets < capacity * 2) {
+            buckets <<= 1;
+        }
+        mBuckets = new int[buckets];
+        Arrays.fill(mBuckets, -1);
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    boolean isFull() {
+        return mSize == mCapacity;
+    }
+
+    /**
+     * Returns the entry of a key, or -1 if the key isn't in the index.
+     */
+    int find(int format, long timestamp) {
+        int entry = mBuckets[bucket(format, timestamp)];
+        while (entry != -1) {
+            if (mTimestamps[entry] == timestamp && mFormats[entry] == format) {
+                return entry;
+            }
+            entry = mChain[entry];
+        }
+        return -1;
+    }
+
+    /**
+     * Marks an entry as the most recently used one.
+     */
+    void touch(int entry) {
+        if (entry != mHead) {
+            unlink(entry);
+            linkFirst(entry);
+        }
+    }
+
+    /**
+     * Adds a key that isn't in the index, replacing the least recently used entry if the
+     * index is full.
+     *
+     * @return the entry of the key.
+     */
+    int add(int format, long timestamp) {
+        final int entry;
+        if (mSize < mCapacity) {
+            entry = mSize++;
+        } else {
+            entry = mTail;
+            unlink(entry);
+            removeFromBucket(entry);
+        }
+        mTimestamps[entry] = timestamp;
+        mFormats[entry] = format;
+        final int bucket = bucket(format, timestamp);
+        mChain[entry] = mBuckets[bucket];
+        mBuckets[bucket] = entry;
+        linkFirst(entry);
+        return entry;
+    }
+
+    private int bucket(int format, long timestamp) {
+        final int hash = ((int) (timestamp ^ (timestamp >>> 32))) * 31 + format;
+        return (hash ^ (hash >>> 16)) & (mBuckets.length - 1);
+    }
+
+    private void removeFromBucket(int entry) {
+        final int bucket = bucket(mFormats[entry], mTimestamps[entry]);
+        int current = mBuckets[bucket];
+        int previous = -1;
+        while (current != entry) {
+            previous = current;
+            current = mChain[current];
+        }
+        if (previous == -1) {
+            mBuckets[bucket] = mChain[entry];
+        } else {
+            mChain[previous] = mChain[entry];
+        }
+    }
+
+    private void linkFirst(int entry) {
+        mPrevious[entry] = -1;
+        mNext[entry] = mHead;
+        if (mHead != -1) {
+            mPrevious[mHead] = entry;
+        }
+        mHead = entry;
+        if (mTail == -1) {
+            mTail = entry;
+        }
+    }
+
+    private void unlink(int entry) {
+        final int previous = mPrevious[entry];
+        final int next = mNext[entry];
+        if (previous != -1) {
+            mNext[previous] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != -1) {
+            mPrevious[next] = previous;
+        } else {
+            mTail = previous;
+        }
+    }
+}
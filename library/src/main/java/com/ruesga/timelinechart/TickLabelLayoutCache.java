@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+/**
+ * A LRU cache of the prepared (immutable) tick labels, keyed by the tick format and the
+ * timestamp of the label (see {@link TickLabelIndex}), so lookups don't allocate any
+ * object.<p />
+ *
+ * Labels are prepared for a label width. Every {@link #reset(int, int) reset} starts a
+ * new generation of the cache, and labels prepared for a previous generation are discarded
+ * when they are put in the cache.<p />
+ *
+ * This class is thread-safe, so labels can be prepared in a background thread.
+ */
+final class TickLabelLayoutCache {
+
+    private int mGeneration;
+    private int mWidth = -1;
+    private TickLabelIndex mIndex;
+    private TickLabelText[] mLabels;
+
+    TickLabelLayoutCache() {
+        reset(-1, 0);
+    }
+
+    /**
+     * Discards all the labels, starting a new generation of labels of the width passed
+     * as argument.
+     */
+    synchronized void reset(int width, int capacity) {
+        mGeneration++;
+        mWidth = width;
+        mIndex = new TickLabelIndex(capacity);
+        mLabels = new TickLabelText[capacity];
+    }
+
+    synchronized int generation() {
+        return mGeneration;
+    }
+
+    synchronized int width() {
+        return mWidth;
+    }
+
+    synchronized int capacity() {
+        return mIndex.capacity();
+    }
+
+    /**
+     * Returns the prepared label, or null if it isn't cached.
+     */
+    synchronized TickLabelText get(int format, long timestamp) {
+        final int entry = mIndex.find(format, timestamp);
+        if (entry == -1) {
+            return null;
+        }
+        mIndex.touch(entry);
+        return mLabels[entry];
+    }
+
+    synchronized boolean contains(int format, long timestamp) {
+        return mIndex.find(format, timestamp) != -1;
+    }
+
+    /**
+     * Puts a label prepared for the generation passed as argument, evicting the least
+     * recently used label if the cache is full.
+     */
+    synchronized void put(int generation, int format, long timestamp, TickLabelText label) {
+        if (generation != mGeneration || mIndex.capacity() == 0
+                || mIndex.find(format, timestamp) != -1) {
+            return;
+        }
+        mLabels[mIndex.add(format, timestamp)] = label;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.Layout;
+
+/**
+ * An immutable prepared tick label. The line breaks, the text size and the position of
+ * every line are computed once, so the label is drawn with plain
+ * {@link Canvas#drawText(char[], int, int, float, float, Paint)} calls, without spans
+ * or layouts.<p />
+ *
+ * Labels that can't be drawn line by line (ie: a line that must be wrapped) are drawn
+ * with a {@link Layout} instead.
+ */
+final class TickLabelText {
+
+    private final char[] mText;
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final float[] mSizes;
+    private final float[] mLefts;
+    private final float[] mBaselines;
+    private final int mWidth;
+    private final Layout mLayout;
+
+    TickLabelText(char[] text, int[] starts, int[] ends, float[] sizes, float[] lefts,
+            float[] baselines, int width) {
+        mText = text;
+        mStarts = starts;
+        mEnds = ends;
+        mSizes = sizes;
+        mLefts = lefts;
+        mBaselines = baselines;
+        mWidth = width;
+        mLayout = null;
+    }
+
+    TickLabelText(Layout layout) {
+        mText = null;
+        mStarts = mEnds = null;
+        mSizes = mLefts = mBaselines = null;
+        mWidth = layout.getWidth();
+        mLayout = layout;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns whether the label is drawn with a layout (whose paint is changed on every draw,
+     * so it must only be drawn from one thread).
+     */
+    boolean isLayout() {
+        return mLayout != null;
+    }
+
+    /**
+     * Draws the label at the position passed as argument (the top-left corner of the label).
+     * Lines are drawn with the paint passed as argument (its text size is changed), while
+     * layouts are drawn with their own paint, in the color of the paint passed as argument.
+     *
+     * @return the number of draw calls (a layout is counted as a single call).
+     */
+    int draw(Canvas c, float x, float y, Paint paint) {
+        if (mLayout != null) {
+            mLayout.getPaint().setColor(paint.getColor());
+            final int restoreCount = c.save();
+            c.translate(x, y);
+            mLayout.draw(c);
+            c.restoreToCount(restoreCount);
+            return 1;
+        }
+
+        final int count = mStarts.length;
+        for (int i = 0; i < count; i++) {
+            paint.setTextSize(mSizes[i]);
+            c.drawText(mText, mStarts[i], mEnds[i] - mStarts[i],
+                    x + mLefts[i], y + mBaselines[i], paint);
+        }
+        return count;
+    }
+}
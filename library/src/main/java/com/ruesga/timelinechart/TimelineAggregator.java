@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Aggregates rows, sorted ascending by timestamp, in buckets of time in a single pass.
+ * Every bucket is a row of a {@link TimelineData} whose timestamp is the start of the
+ * bucket. The last bucket is kept as an {@link TimelineData#appendOpen(long) open} row,
+ * so new rows of the bucket can update it in place.<p />
+ *
+ * This class is not thread-safe. It must only be used from the background thread.
+ */
+final class TimelineAggregator {
+
+    private final int mAggregation;
+    private final long mInterval;
+    private final int mReducer;
+    private final Calendar mCalendar;
+
+    // The range of the last computed bucket
+    private long mBucketStart = Long.MIN_VALUE;
+    private long mBucketEnd = Long.MIN_VALUE;
+
+    // State of the open bucket
+    private long mOpenBucket = Long.MIN_VALUE;
+    private int mCount;
+    private double[] mSums = new double[0];
+    private long mLastTimestamp = Long.MIN_VALUE;
+
+    TimelineAggregator(int aggregation, long interval, int reducer) {
+        mAggregation = aggregation;
+        mInterval = interval;
+        mReducer = reducer;
+        mCalendar = Calendar.getInstance(TimeZone.getDefault(), Locale.getDefault());
+    }
+
+    /**
+     * Resets the state of the open bucket (the data is going to be aggregated from scratch).
+     */
+    void reset() {
+        mOpenBucket = Long.MIN_VALUE;
+        mCount = 0;
+        mLastTimestamp = Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the timestamp of the last aggregated row, or {@link Long#MIN_VALUE} if
+     * no rows were aggregated since the last reset.
+     */
+    long lastTimestamp() {
+        return mLastTimestamp;
+    }
+
+    /**
+     * Aggregates a row in the data.
+     *
+     * @return the row of the data updated, or -1 if the row was discarded because it's
+     *         older than the last aggregated row.
+     */
+    int add(TimelineData data, long timestamp, double[] values) {
+        if (timestamp <= mLastTimestamp) {
+            return -1;
+        }
+        final long bucket = computeBucket(timestamp);
+        final int series = data.series();
+        final boolean open = data.isOpen() && data.lastTimestamp() == bucket;
+        if (!open && data.size() > 0 && bucket <= data.lastTimestamp()) {
+            // The bucket was already closed
+            return -1;
+        }
+        mLastTimestamp = timestamp;
+        if (mSums.length != series) {
+            mSums = new double[series];
+        }
+
+        final int row;
+        if (open) {
+            row = data.size() - 1;
+            if (mOpenBucket != bucket || mCount == 0) {
+                // Not aggregated by us. Take the current values as a single sample
+                for (int i = 0; i < series; i++) {
+                    mSums[i] = data.valueAt(row, i);
+                }
+                mCount = 1;
+            }
+            mCount++;
+            for (int i = 0; i < series; i++) {
+                final double v = values[i];
+                mSums[i] += v;
+                data.setValue(row, i, reduce(data.valueAt(row, i), v, mSums[i], mCount));
+            }
+        } else {
+            row = data.appendOpen(bucket);
+            mOpenBucket = bucket;
+            mCount = 1;
+            for (int i = 0; i < series; i++) {
+                mSums[i] = values[i];
+                data.setValue(row, i, values[i]);
+            }
+        }
+        return row;
+    }
+
+    private double reduce(double current, double value, double sum, int count) {
+        switch (mReducer) {
+            case TimelineChartView.AGGREGATION_REDUCER_AVG:
+                return sum / count;
+            case TimelineChartView.AGGREGATION_REDUCER_MAX:
+                return Math.max(current, value);
+            case TimelineChartView.AGGREGATION_REDUCER_LAST:
+                return value;
+            default:
+                return sum;
+        }
+    }
+
+    private long computeBucket(long timestamp) {
+        if (timestamp >= mBucketStart && timestamp < mBucketEnd) {
+            return mBucketStart;
+        }
+
+        if (mAggregation == TimelineChartView.AGGREGATION_INTERVAL) {
+            // Fixed intervals are aligned to the epoch
+            long start = timestamp - (timestamp % mInterval);
+            if (start > timestamp) {
+                start -= mInterval;
+            }
+            mBucketStart = start;
+            mBucketEnd = start + mInterval;
+            return mBucketStart;
+        }
+
+        final Calendar c = mCalendar;
+        c.setTimeInMillis(timestamp);
+        c.set(Calendar.MILLISECOND, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MINUTE, 0);
+        int field = Calendar.HOUR_OF_DAY;
+        if (mAggregation != TimelineChartView.AGGREGATION_HOUR) {
+            c.set(Calendar.HOUR_OF_DAY, 0);
+            field = Calendar.DAY_OF_MONTH;
+            if (mAggregation == TimelineChartView.AGGREGATION_WEEK) {
+                final int days = (c.get(Calendar.DAY_OF_WEEK) - c.getFirstDayOfWeek() + 7) % 7;
+                c.add(Calendar.DAY_OF_MONTH, -days);
+                field = Calendar.WEEK_OF_YEAR;
+            } else if (mAggregation == TimelineChartView.AGGREGATION_MONTH) {
+                c.set(Calendar.DAY_OF_MONTH, 1);
+                field = Calendar.MONTH;
+            }
+        }
+        mBucketStart = c.getTimeInMillis();
+        c.add(field, 1);
+        mBucketEnd = c.getTimeInMillis();
+        return mBucketStart;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Batches the bar segments of a frame by paint, so every paint is drawn with a single
+ * {@link Canvas#drawLines(float[], int, int, Paint)} call (a vertical line per segment,
+ * as wide as the bars). Segments must not overlap, since the draw order between
+ * different paints is lost. Segments of other width (the bars at the edges of dense
+ * data) are drawn one by one as rectangles.<p />
+ *
+ * The batch draws with its own copies of the paints of the series, so the stroke of the
+ * paints (shared with other threads) is never modified.<p />
+ *
+ * This class is not thread-safe. Every thread must use its own batch.
+ */
+final class TimelineBarBatch {
+
+    private static final int MIN_CAPACITY = 64;
+
+    private Paint[] mSeriesPaints;
+    private Paint[] mPaints = new Paint[0];
+    private float[][] mLines = new float[0][];
+    private int[] mCounts = new int[0];
+    private float[][] mRects = new float[0][];
+    private int[] mRectCounts = new int[0];
+    private int mSize;
+
+    /**
+     * Sets the paints of the segments: the paints of the series are the paints in
+     * {@code [0, series)}, and the highlight ones the paints in {@code [series, series * 2)}.
+     * The paints are only copied again when the palette changes.
+     */
+    void setPaints(Paint[] seriesPaints, Paint[] highlightPaints) {
+        if (mSeriesPaints == seriesPaints) {
+            return;
+        }
+        final int series = seriesPaints.length;
+        final int size = series * 2;
+        if (mPaints.length < size) {
+            Paint[] paints = new Paint[size];
+            System.arraycopy(mPaints, 0, paints, 0, mPaints.length);
+            mPaints = paints;
+            float[][] lines = new float[size][];
+            System.arraycopy(mLines, 0, lines, 0, mLines.length);
+            mLines = lines;
+            float[][] rects = new float[size][];
+            System.arraycopy(mRects, 0, rects, 0, mRects.length);
+            mRects = rects;
+            mCounts = new int[size];
+            mRectCounts = new int[size];
+        }
+        for (int i = 0; i < size; i++) {
+            if (mPaints[i] == null) {
+                mPaints[i] = new Paint();
+            }
+            mPaints[i].set(i < series ? seriesPaints[i] : highlightPaints[i - series]);
+            mPaints[i].setStrokeCap(Paint.Cap.BUTT);
+        }
+        mSeriesPaints = seriesPaints;
+        mSize = size;
+    }
+
+    /**
+     * Starts a new batch.
+     */
+    void begin() {
+        for (int i = 0; i < mSize; i++) {
+            mCounts[i] = 0;
+            mRectCounts[i] = 0;
+        }
+    }
+
+    /**
+     * Adds a segment (from the top to the bottom) centered in the x coordinate passed
+     * as argument. Empty segments are ignored.
+     */
+    void add(int paint, float x, float top, float bottom) {
+        if (top >= bottom) {
+            return;
+        }
+        final int count = mCounts[paint];
+        final float[] lines = ensureCapacity(mLines, paint, count);
+        lines[count] = x;
+        lines[count + 1] = top;
+        lines[count + 2] = x;
+        lines[count + 3] = bottom;
+        mCounts[paint] = count + 4;
+    }
+
+    /**
+     * Adds a segment which isn't as wide as the rest of the segments of the batch.
+     * Empty segments are ignored.
+     */
+    void addRect(int paint, float left, float top, float right, float bottom) {
+        if (top >= bottom || left >= right) {
+            return;
+        }
+        final int count = mRectCounts[paint];
+        final float[] rects = ensureCapacity(mRects, paint, count);
+        rects[count] = left;
+        rects[count + 1] = top;
+        rects[count + 2] = right;
+        rects[count + 3] = bottom;
+        mRectCounts[paint] = count + 4;
+    }
+
+    private static float[] ensureCapacity(float[][] segments, int paint, int count) {
+        final float[] current = segments[paint];
+        if (current != null && count + 4 <= current.length) {
+            return current;
+        }
+        final float[] grown = new float[Math.max(MIN_CAPACITY, count * 2)];
+        if (current != null) {
+            System.arraycopy(current, 0, grown, 0, count);
+        }
+        segments[paint] = grown;
+        return grown;
+    }
+
+    /**
+     * Draws all the segments of the batch.
+     *
+     * @return the number of draw calls.
+     */
+    int draw(Canvas c, float width) {
+        int drawCalls = 0;
+        for (int i = 0; i < mSize; i++) {
+            final Paint paint = mPaints[i];
+            if (mCounts[i] > 0) {
+                paint.setStrokeWidth(width);
+                c.drawLines(mLines[i], 0, mCounts[i], paint);
+                drawCalls++;
+            }
+            final float[] rects = mRects[i];
+            for (int n = 0; n < mRectCounts[i]; n += 4) {
+                c.drawRect(rects[n], rects[n + 1], rects[n + 2], rects[n + 3], paint);
+                drawCalls++;
+            }
+        }
+        return drawCalls;
+    }
+}
@@ -18,6 +18,7 @@ package com.ruesga.timelinechart;
 import android.animation.Animator;
 import android.animation.ValueAnimator;
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.content.res.Resources;
@@ -29,6 +30,8 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Picture;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
@@ -38,14 +41,16 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.RawRes;
 import android.support.v4.content.ContextCompat;
-import android.support.v4.util.LongSparseArray;
-import android.support.v4.util.Pair;
 import android.support.v4.view.ViewCompat;
 import android.text.DynamicLayout;
 import android.text.Layout;
+import android.text.Spannable;
+import android.text.SpannableString;
 import android.text.Spanned;
+import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.style.AbsoluteSizeSpan;
 import android.util.AttributeSet;
@@ -53,6 +58,8 @@ import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.TypedValue;
+import android.view.Choreographer;
+import android.view.Display;
 import android.view.MotionEvent;
 import android.view.SoundEffectConstants;
 import android.view.VelocityTracker;
@@ -66,14 +73,26 @@ import com.ruesga.timelinechart.helpers.ArraysHelper;
 import com.ruesga.timelinechart.helpers.MaterialPaletteHelper;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A view to represent data over a timeline.<p />
@@ -110,9 +129,16 @@ import java.util.TimeZone;
  *         time goes. The data load process won't update, delete or add information
  *         older than the last timestamp saw in the last iteration. Data in cursor expected
  *         to be sorted ascending by timestamp and cursor won't vary its number
- *         of fields (series to display in the graph).</li>
+ *         of fields (series to display in the graph). The number of items retained can be
+ *         bounded with {@link #setRetentionMaxItems(int)} and
+ *         {@link #setRetentionTimeWindow(long)}, evicting the oldest ones.</li>
  * </ul>
  * <p />
+ *
+ * Alternatively, data can be pushed directly to the view, without a cursor, with
+ * {@link #appendPoint(long, double...)} and {@link #appendPoints(long[], double[])}. This
+ * is suitable for live graphs fed by high frequency sources (like sensors).
+ * <p />
  * <p />
  *
  * The view supports various graph mode representations that can be established via
@@ -277,6 +303,87 @@ public class TimelineChartView extends View {
         void onNothingSelected();
     }
 
+    /**
+     * A class that represents the timings of a drawn frame.
+     * @see com.ruesga.timelinechart.TimelineChartView.OnFrameMetricsListener
+     */
+    public static class FrameMetrics {
+        private FrameMetrics() {
+        }
+
+        /**
+         * The vsync time of the frame (in the {@link System#nanoTime()} time base), or 0
+         * if it's unknown.
+         */
+        public long mFrameTimeNanos;
+
+        /**
+         * The time spent drawing the backgrounds of the graph and footer areas.
+         */
+        public long mBackgroundsNanos;
+
+        /**
+         * The time spent drawing the bars. When the frame is drawn from the tile cache or
+         * from the display list of the content, this includes the tick labels too.
+         */
+        public long mBarsNanos;
+
+        /**
+         * The time spent drawing the tick labels (0 if they were drawn with the bars).
+         */
+        public long mTickLabelsNanos;
+
+        /**
+         * The time spent drawing the edge scrolling effects.
+         */
+        public long mEdgeEffectsNanos;
+
+        /**
+         * The time spent drawing the whole frame.
+         */
+        public long mTotalNanos;
+
+        /**
+         * The number of items on screen.
+         */
+        public int mVisibleItems;
+
+        /**
+         * The number of draw calls used to draw the bars.
+         * @see #getBarsDrawCallsCount()
+         */
+        public int mBarsDrawCalls;
+
+        /**
+         * The number of draw calls used to draw the tick labels (0 if they were drawn
+         * with the bars).
+         */
+        public int mTickLabelsDrawCalls;
+
+        /**
+         * Whether the frame finished after the next vsync deadline.
+         */
+        public boolean mMissedDeadline;
+
+        /**
+         * The number of frames that missed the vsync deadline since the listener was set.
+         */
+        public int mMissedDeadlineCount;
+    }
+
+    /**
+     * An interface definition to notify the timings of every drawn frame.
+     */
+    public interface OnFrameMetricsListener {
+        /**
+         * Called from the UI thread after a frame was drawn.
+         *
+         * @param metrics the timings of the frame. The instance is reused between frames,
+         *                so it must not be kept.
+         */
+        void onFrameMetrics(FrameMetrics metrics);
+    }
+
     /**
      * An interface definition to notify changes in the color palette.
      */
@@ -289,6 +396,480 @@ public class TimelineChartView extends View {
         void onColorPaletteChanged(int[] palette);
     }
 
+    /**
+     * An interface definition to query only the new records of the observed data when
+     * the view observes data with {@link #ONLY_ADDITIONS_OPTIMIZATION}.
+     */
+    public interface IncrementalDataProvider {
+        /**
+         * Called from a background thread when the observed data changed, to query the
+         * records newer than the last record of the view.
+         *
+         * @param timestamp the timestamp of the last record of the view.
+         * @return a cursor with the records with a timestamp greater than the one passed
+         *         as argument (with the same fields than the observed cursor), or null to
+         *         read the new records from the observed cursor. The view will close the
+         *         returned cursor.
+         */
+        Cursor queryNewerThan(long timestamp);
+    }
+
+    /**
+     * An immutable snapshot of all the computed data needed to draw the view. Snapshots
+     * are computed in background and published with a single reference swap, so the
+     * ui thread never needs to synchronize with the background thread to read them.
+     */
+    private static final class DataSnapshot {
+        static final DataSnapshot EMPTY = new DataSnapshot(
+                new TimelineData(0, 0), new MaxValues(), 0.f, false,
+                new int[0], new Paint[0], new Paint[0]);
+
+        final TimelineData mData;
+        final int mSeries;
+        final MaxValues mMaxValues;
+        final float mMaxOffset;
+        final boolean mTickHasDayFormat;
+        final int[] mPalette;
+        final Paint[] mSeriesBgPaint;
+        final Paint[] mHighlightSeriesBgPaint;
+        // Aggregations of the data used to draw dense bars (null if not computed)
+        final TimelineDataPyramid mPyramid;
+
+        DataSnapshot(TimelineData data, MaxValues maxValues, float maxOffset,
+                boolean tickHasDayFormat, int[] palette, Paint[] seriesBgPaint,
+                Paint[] highlightSeriesBgPaint) {
+            this(data, maxValues, maxOffset, tickHasDayFormat, palette, seriesBgPaint,
+                    highlightSeriesBgPaint, null);
+        }
+
+        DataSnapshot(TimelineData data, MaxValues maxValues, float maxOffset,
+                boolean tickHasDayFormat, int[] palette, Paint[] seriesBgPaint,
+                Paint[] highlightSeriesBgPaint, TimelineDataPyramid pyramid) {
+            mData = data;
+            mSeries = data.series();
+            mMaxValues = maxValues;
+            mMaxOffset = maxOffset;
+            mTickHasDayFormat = tickHasDayFormat;
+            mPalette = palette;
+            mSeriesBgPaint = seriesBgPaint;
+            mHighlightSeriesBgPaint = highlightSeriesBgPaint;
+            mPyramid = pyramid;
+        }
+
+        DataSnapshot withPalette(int[] palette, Paint[] seriesBgPaint,
+                Paint[] highlightSeriesBgPaint) {
+            return new DataSnapshot(mData, mMaxValues, mMaxOffset, mTickHasDayFormat,
+                    palette, seriesBgPaint, highlightSeriesBgPaint, mPyramid);
+        }
+
+        DataSnapshot withPyramid(TimelineDataPyramid pyramid) {
+            return new DataSnapshot(mData, mMaxValues, mMaxOffset, mTickHasDayFormat,
+                    mPalette, mSeriesBgPaint, mHighlightSeriesBgPaint, pyramid);
+        }
+
+        DataSnapshot withPalette(DataSnapshot snapshot) {
+            return withPalette(snapshot.mPalette,
+                    snapshot.mSeriesBgPaint, snapshot.mHighlightSeriesBgPaint);
+        }
+    }
+
+    /**
+     * How the bars are placed and scaled. The UI thread fills one on every frame, and every
+     * generation of tiles captures its own, so both draw the bars with the same code.
+     */
+    private static final class BarGeometry {
+        int mGraphMode;
+        double mMaxValue;
+        int mDenseLevel;
+        float mBarWidth;
+        float mBarItemWidth;
+        float mTop;
+        float mHeight;
+        // The item placed at the anchor x coordinate (the rest are placed relative to it)
+        float mAnchorX;
+        long mAnchorItem;
+        // Whether the bars under the highlight x coordinate are highlighted
+        boolean mHighlight;
+        float mHighlightX;
+
+        void set(BarGeometry src) {
+            mGraphMode = src.mGraphMode;
+            mMaxValue = src.mMaxValue;
+            mDenseLevel = src.mDenseLevel;
+            mBarWidth = src.mBarWidth;
+            mBarItemWidth = src.mBarItemWidth;
+            mTop = src.mTop;
+            mHeight = src.mHeight;
+            mAnchorX = src.mAnchorX;
+            mAnchorItem = src.mAnchorItem;
+            mHighlight = src.mHighlight;
+            mHighlightX = src.mHighlightX;
+        }
+
+        float itemX(int item) {
+            return mAnchorX - (mBarWidth * (mAnchorItem - item));
+        }
+    }
+
+    /**
+     * Draws the bars of a snapshot with a geometry. Threads drawing at the same time must
+     * use their own renderer.
+     */
+    private static final class BarRenderer {
+        // Batched bars (the normal paints of the series, followed by the highlight ones)
+        private final TimelineBarBatch mBatch = new TimelineBarBatch();
+        // The draw order of overlapped bars. Rows are sorted every time without it
+        private final TimelineOrderCache mOrderCache;
+        private double[] mValues = new double[0];
+        private int[] mIndexes = new int[0];
+
+        BarRenderer(TimelineOrderCache orderCache) {
+            mOrderCache = orderCache;
+        }
+
+        /**
+         * Draws the bars of the items passed as argument. Dense bars are drawn every one
+         * until the aggregations of the snapshot are available.
+         *
+         * @return the number of draw calls.
+         */
+        int draw(Canvas c, DataSnapshot snapshot, BarGeometry geometry, int first, int last) {
+            final int count = snapshot.mData.series();
+            if (mValues.length != count) {
+                mValues = new double[count];
+                mIndexes = new int[count];
+            }
+
+            // Batch the segments of the bars by paint. Overlapped bars are split in the
+            // visible segment of every serie, so the draw order doesn't matter
+            final TimelineBarBatch batch = mBatch;
+            batch.setPaints(snapshot.mSeriesBgPaint, snapshot.mHighlightSeriesBgPaint);
+            batch.begin();
+            float width = geometry.mBarItemWidth;
+            if (geometry.mDenseLevel > 0 && snapshot.mPyramid != null) {
+                final int level = Math.min(geometry.mDenseLevel, snapshot.mPyramid.levels());
+                addDenseBarItems(snapshot, geometry, level, first, last);
+                width += geometry.mBarWidth * ((1 << level) - 1);
+            } else {
+                addBarItems(snapshot.mData, geometry, first, last);
+            }
+            return batch.draw(c,
+                    geometry.mGraphMode == GRAPH_MODE_BARS_SIDE_BY_SIDE ? width / count : width);
+        }
+
+        private void addBarItems(TimelineData data, BarGeometry geometry, int first, int last) {
+            final TimelineBarBatch batch = mBatch;
+            final double maxValue = geometry.mMaxValue;
+            final float halfItemBarWidth = geometry.mBarItemWidth / 2;
+            final float height = geometry.mHeight;
+            final float top = geometry.mTop;
+            final float hx = geometry.mHighlightX;
+            final int count = data.series();
+            final float bw = geometry.mBarItemWidth / count;
+            for (int i = last; i >= first; i--) {
+                if (!data.isLoaded(i)) {
+                    // The item isn't loaded yet
+                    continue;
+                }
+                final float x = geometry.itemX(i);
+                final float x1 = x - halfItemBarWidth, x2 = x + halfItemBarWidth;
+                final int paint = geometry.mHighlight && x1 < hx && x2 > hx ? count : 0;
+
+                float y1, y2 = height;
+                if (geometry.mGraphMode == GRAPH_MODE_BARS_SIDE_BY_SIDE) {
+                    for (int n = 0; n < count; n++) {
+                        final double v = data.valueAt(i, n);
+                        y1 = (float) (height - ((height * ((v * 100) / maxValue)) / 100));
+                        batch.add(paint + n, x1 + (bw * n) + (bw / 2), top + y1, top + y2);
+                    }
+                } else if (geometry.mGraphMode == GRAPH_MODE_BARS_STACK) {
+                    for (int j = 0; j < count; j++) {
+                        final double v = data.valueAt(i, j);
+                        float h = (float) ((height * ((v * 100) / maxValue)) / 100);
+                        y1 = y2 - h;
+                        batch.add(paint + j, x, top + y1, top + y2);
+                        y2 -= h;
+                    }
+                } else {
+                    // From the lowest to the highest value, every serie is only visible
+                    // above the previous one
+                    if (mOrderCache == null) {
+                        sort(data, i, count);
+                    }
+                    for (int j = 0; j < count; j++) {
+                        final int serie = mOrderCache != null
+                                ? mOrderCache.orderAt(i, j) : mIndexes[j];
+                        final double v = data.valueAt(i, serie);
+                        y1 = (float) (height - ((height * ((v * 100) / maxValue)) / 100));
+                        batch.add(paint + serie, x, top + y1, top + y2);
+                        y2 = Math.min(y2, y1);
+                    }
+                }
+            }
+        }
+
+        private void sort(TimelineData data, int row, int count) {
+            for (int j = 0; j < count; j++) {
+                mValues[j] = data.valueAt(row, j);
+                mIndexes[j] = j;
+            }
+            ArraysHelper.sort(mValues, mIndexes, count);
+        }
+
+        private void addDenseBarItems(DataSnapshot snapshot, BarGeometry geometry, int level,
+                int firstItem, int lastItem) {
+            final TimelineData data = snapshot.mData;
+            final TimelineDataPyramid pyramid = snapshot.mPyramid;
+            final double maxValue = geometry.mMaxValue;
+            final float halfItemBarWidth = geometry.mBarItemWidth / 2;
+            final float height = geometry.mHeight;
+            final float top = geometry.mTop;
+            final float hx = geometry.mHighlightX;
+            final boolean stack = geometry.mGraphMode == GRAPH_MODE_BARS_STACK;
+            final int count = data.series();
+            final double[] values = mValues;
+            final int[] indexes = mIndexes;
+
+            // Add a bar per bucket of the items
+            final int first = Math.max(firstItem, data.windowStart());
+            final int last = Math.min(lastItem, data.windowEnd() - 1);
+            if (first > last) {
+                return;
+            }
+            final int items = 1 << level;
+            final long evicted = data.evicted();
+            final long firstBucket = (first + evicted) >> level;
+            for (long bucket = (last + evicted) >> level; bucket >= firstBucket; bucket--) {
+                final int from = (int) Math.max((bucket << level) - evicted,
+                        data.windowStart());
+                final int to = (int) Math.min(((bucket + 1) << level) - evicted,
+                        data.windowEnd()) - 1;
+                final float x1 = geometry.itemX(from) - halfItemBarWidth;
+                final float x2 = geometry.itemX(to) + halfItemBarWidth;
+                final int paint = geometry.mHighlight && x1 < hx && x2 > hx ? count : 0;
+                // Buckets at the edges of the data are narrower than the rest
+                final boolean partial = to - from + 1 != items;
+
+                // Stacked bars show the average of every serie; the rest, the max value
+                if (pyramid.isComplete(level, bucket)) {
+                    final int n = pyramid.countAt(level, bucket);
+                    for (int j = 0; j < count; j++) {
+                        values[j] = stack
+                                ? pyramid.sumAt(level, bucket, j) / n
+                                : pyramid.maxAt(level, bucket, j);
+                    }
+                } else {
+                    // The bucket is at the edge of the data. Aggregate its rows
+                    for (int j = 0; j < count; j++) {
+                        double v = stack ? 0d : data.valueAt(from, j);
+                        for (int i = from; i <= to; i++) {
+                            v = stack
+                                    ? v + data.valueAt(i, j)
+                                    : Math.max(v, data.valueAt(i, j));
+                        }
+                        values[j] = stack ? v / (to - from + 1) : v;
+                    }
+                }
+
+                float y1, y2 = height;
+                if (stack) {
+                    for (int j = 0; j < count; j++) {
+                        float h = (float) ((height * ((values[j] * 100) / maxValue)) / 100);
+                        y1 = y2 - h;
+                        addDenseBar(partial, paint + j, x1, top + y1, x2, top + y2);
+                        y2 -= h;
+                    }
+                } else if (geometry.mGraphMode == GRAPH_MODE_BARS_SIDE_BY_SIDE) {
+                    final float bw = (x2 - x1) / count;
+                    for (int j = 0; j < count; j++) {
+                        y1 = (float) (height - ((height * ((values[j] * 100) / maxValue)) / 100));
+                        addDenseBar(partial, paint + j,
+                                x1 + (bw * j), top + y1, x1 + (bw * (j + 1)), top + y2);
+                    }
+                } else {
+                    // From the lowest to the highest value, every serie is only visible
+                    // above the previous one
+                    for (int j = 0; j < count; j++) {
+                        indexes[j] = j;
+                    }
+                    ArraysHelper.sort(values, indexes, count);
+                    for (int j = 0; j < count; j++) {
+                        y1 = (float) (height - ((height * ((values[j] * 100) / maxValue)) / 100));
+                        addDenseBar(partial, paint + indexes[j], x1, top + y1, x2, top + y2);
+                        y2 = Math.min(y2, y1);
+                    }
+                }
+            }
+        }
+
+        private void addDenseBar(boolean partial, int paint,
+                float left, float top, float right, float bottom) {
+            if (partial) {
+                mBatch.addRect(paint, left, top, right, bottom);
+            } else {
+                mBatch.add(paint, (left + right) / 2, top, bottom);
+            }
+        }
+    }
+
+    /**
+     * What the bitmap tiles of a generation are rendered from. Everything the background
+     * thread needs is captured (or copied) from the UI thread when the generation starts.
+     */
+    private static final class TileSpec {
+        final int mGeneration;
+        final DataSnapshot mSnapshot;
+        final int mModCount;
+        final BarGeometry mGeometry;
+        // Tiles of dense bars hold more items, so they are as wide as the rest
+        final int mTileItems;
+        final boolean mShowFooter;
+        final float mLabelTop;
+        final int mLabelWidth;
+        // Copies of the label paints (the UI thread changes the alpha of its paints)
+        final TextPaint mTextPaint;
+        final TextPaint mLayoutPaint;
+
+        TileSpec(int generation, DataSnapshot snapshot, BarGeometry geometry,
+                boolean showFooter, float labelTop, int labelWidth, TextPaint textPaint,
+                TextPaint layoutPaint) {
+            mGeneration = generation;
+            mSnapshot = snapshot;
+            mModCount = snapshot.mData.modCount();
+            mGeometry = geometry;
+            mTileItems = TILE_ITEMS << geometry.mDenseLevel;
+            mShowFooter = showFooter;
+            mLabelTop = labelTop;
+            mLabelWidth = labelWidth;
+            mTextPaint = textPaint;
+            mLayoutPaint = layoutPaint;
+        }
+    }
+
+    /**
+     * The max values of the data for every graph mode: the max value of the series for the
+     * bars and side by side modes, and the max sum of the series of a row for the stack mode.
+     * Instances are never modified once published in a snapshot.
+     */
+    private static final class MaxValues {
+        double mMax;
+        double mStackMax;
+
+        MaxValues() {
+        }
+
+        MaxValues(MaxValues src) {
+            mMax = src.mMax;
+            mStackMax = src.mStackMax;
+        }
+
+        double get(int graphMode) {
+            return graphMode == GRAPH_MODE_BARS_STACK ? mStackMax : mMax;
+        }
+
+        void add(TimelineData data, int row) {
+            final int series = data.series();
+            double stack = 0d;
+            for (int i = 0; i < series; i++) {
+                final double v = data.valueAt(row, i);
+                stack += v;
+                if (v > mMax) {
+                    mMax = v;
+                }
+            }
+            if (stack > mStackMax) {
+                mStackMax = stack;
+            }
+        }
+
+        void merge(MaxValues other) {
+            mMax = Math.max(mMax, other.mMax);
+            mStackMax = Math.max(mStackMax, other.mStackMax);
+        }
+
+        /**
+         * Returns whether the row passed as argument holds any of the max values.
+         */
+        boolean isHeldBy(TimelineData data, int row) {
+            final int series = data.series();
+            double stack = 0d;
+            for (int i = 0; i < series; i++) {
+                final double v = data.valueAt(row, i);
+                stack += v;
+                if (v >= mMax) {
+                    return true;
+                }
+            }
+            return stack >= mStackMax;
+        }
+    }
+
+    /**
+     * Computes the max values and the tick label formats of a range of rows of a data.
+     * The ranges of the tasks never overlap, so they can safely update its rows. Every
+     * thread classifies the rows with its own copy of the classifier of the view, reused
+     * by all the tasks it runs.
+     */
+    private static final class PostProcessTask implements Callable<PostProcessTask> {
+        final TimelineData mData;
+        final int mFrom;
+        final int mTo;
+        final TickLabelClassifier mClassifier;
+        final ThreadLocal<TickLabelClassifier> mClassifiers;
+        final MaxValues mMax = new MaxValues();
+        int mFirstTickLabelFormat = -1;
+        int mLastTickLabelFormat = -1;
+        boolean mHasDayFormat;
+
+        PostProcessTask(TimelineData data, int from, int to, TickLabelClassifier classifier,
+                ThreadLocal<TickLabelClassifier> classifiers) {
+            mData = data;
+            mFrom = from;
+            mTo = to;
+            mClassifier = classifier;
+            mClassifiers = classifiers;
+        }
+
+        @Override
+        public PostProcessTask call() {
+            TickLabelClassifier classifier = mClassifiers.get();
+            if (classifier == null || !classifier.hasSameTimeZone(mClassifier)) {
+                classifier = mClassifier.copy();
+                mClassifiers.set(classifier);
+            }
+            for (int i = mFrom; i < mTo; i++) {
+                final int tickLabelFormat = classifier.classify(mData.timestampAt(i));
+                mData.setTickFormat(i, tickLabelFormat);
+                if (tickLabelFormat == TICK_LABEL_DAY_FORMAT || (mLastTickLabelFormat != -1
+                        && mLastTickLabelFormat != tickLabelFormat)) {
+                    mHasDayFormat = true;
+                }
+                if (mFirstTickLabelFormat == -1) {
+                    mFirstTickLabelFormat = tickLabelFormat;
+                }
+                mLastTickLabelFormat = tickLabelFormat;
+                mMax.add(mData, i);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A set of items pushed by {@link #appendPoint(long, double...)} or
+     * {@link #appendPoints(long[], double[])} pending to be appended to the data.
+     */
+    private static final class PendingPoints {
+        final int mSeries;
+        final long[] mTimestamps;
+        final double[] mValues;
+
+        PendingPoints(long[] timestamps, double[] values) {
+            mSeries = values.length / timestamps.length;
+            mTimestamps = timestamps;
+            mValues = values;
+        }
+    }
+
     private class LongPressDetector implements Runnable {
         boolean mLongPressTriggered;
 
@@ -325,13 +906,51 @@ public class TimelineChartView extends View {
      * delete or add information older than the last timestamp saw in the last iteration.
      * Data in cursor expected to be sorted ascending by timestamp and cursor won't vary
      * its number of fields (series to display in the graph).
+     * @see #setRetentionMaxItems(int)
+     * @see #setRetentionTimeWindow(long)
      */
     public static final int ONLY_ADDITIONS_OPTIMIZATION = 2;
+    /**
+     * Only the records around the current viewport are kept in memory. Records are read
+     * from the cursor in pages, as the user scrolls, and kept in a cache bounded by
+     * {@link #setWindowedCacheSize(int)}. Use this optimization to browse cursors with
+     * millions of records. Data in cursor expected to be sorted ascending by timestamp and
+     * cursor won't vary its number of fields (series to display in the graph). The graph
+     * is scaled to the max value of the records in memory.
+     * @see #setWindowedCacheSize(int)
+     */
+    public static final int WINDOWED_OPTIMIZATION = 3;
+
+    /** Constant to define that records are not aggregated. */
+    public static final int AGGREGATION_NONE = 0;
+    /** Constant to define that records are aggregated by hour. */
+    public static final int AGGREGATION_HOUR = 1;
+    /** Constant to define that records are aggregated by day. */
+    public static final int AGGREGATION_DAY = 2;
+    /** Constant to define that records are aggregated by week. */
+    public static final int AGGREGATION_WEEK = 3;
+    /** Constant to define that records are aggregated by month. */
+    public static final int AGGREGATION_MONTH = 4;
+    /**
+     * Constant to define that records are aggregated by a fixed interval.
+     * @see #setAggregationInterval(long, int)
+     */
+    public static final int AGGREGATION_INTERVAL = 5;
+
+    /** Constant to define that aggregated records are reduced to the sum of the values. */
+    public static final int AGGREGATION_REDUCER_SUM = 0;
+    /** Constant to define that aggregated records are reduced to the average of the values. */
+    public static final int AGGREGATION_REDUCER_AVG = 1;
+    /** Constant to define that aggregated records are reduced to the max of the values. */
+    public static final int AGGREGATION_REDUCER_MAX = 2;
+    /** Constant to define that aggregated records are reduced to the last of the values. */
+    public static final int AGGREGATION_REDUCER_LAST = 3;
 
     // Sort of available formats for tick labels
-    private static final int TICK_LABEL_SECONDS_FORMAT = 0;
-    private static final int TICK_LABEL_HOUR_MINUTES_FORMAT = 1;
-    private static final int TICK_LABEL_DAY_FORMAT = 2;
+    private static final int TICK_LABEL_SECONDS_FORMAT = TickLabelClassifier.SECONDS_FORMAT;
+    private static final int TICK_LABEL_HOUR_MINUTES_FORMAT =
+            TickLabelClassifier.HOUR_MINUTES_FORMAT;
+    private static final int TICK_LABEL_DAY_FORMAT = TickLabelClassifier.DAY_FORMAT;
 
     private static final float MAX_ZOOM_OUT = 4.0f;
     private static final float MIN_ZOOM_OUT = 1.0f;
@@ -341,20 +960,39 @@ public class TimelineChartView extends View {
 
     private static final int TAP_TIMEOUT = 50;
 
+    // Free room reserved in live data, so most of the appends don't need to reallocate it
+    private static final int LIVE_DATA_FREE_CAPACITY = 128;
+
+    private static final int DEFAULT_WINDOWED_CACHE_SIZE = 4 * 1024 * 1024;
+
+    // Bars narrower than this (in pixels) are aggregated and drawn as a single bar
+    private static final float MIN_DENSE_BAR_WIDTH = 3.f;
+
+    // Loads of at least this number of records are post-processed in parallel
+    private static final int PARALLEL_MIN_ROWS = 16384;
+    private static final int POST_PROCESS_THREADS = Runtime.getRuntime().availableProcessors();
+
     private Cursor mCursor;
     private int mOptimizationFlag = NO_OPTIMIZATION;
-    private int mSeries;
-    private LongSparseArray<Pair<double[],int[]>> mData = new LongSparseArray<>();
-    private double mMaxValue;
+    private IncrementalDataProvider mIncrementalDataProvider;
+    // The number of records of the cursor read in the last iteration (-1 if unknown)
+    private int mCursorWatermark = -1;
+    private int mRetentionMaxItems;
+    private long mRetentionTimeWindow;
+    private TimelineDataPages mDataPages = new TimelineDataPages(DEFAULT_WINDOWED_CACHE_SIZE);
+    private int mAggregation = AGGREGATION_NONE;
+    private long mAggregationInterval;
+    private int mAggregationReducer = AGGREGATION_REDUCER_SUM;
+    private volatile TimelineAggregator mAggregator;
+    // The aggregator of the latest computed data (only accessed from the background thread)
+    private TimelineAggregator mDataAggregator;
+    private volatile DataSnapshot mSnapshot = DataSnapshot.EMPTY;
+    private DataSnapshot mPendingSnapshot;
+    // The snapshot read by the UI thread in the last frame (it can be older than mSnapshot)
+    private volatile DataSnapshot mDrawingSnapshot;
     private final Item mItem = new Item();
     private final RectF mSerieRect = new RectF();
 
-    private int mSeriesSwap;
-    private LongSparseArray<Pair<double[],int[]>> mDataSwap = new LongSparseArray<>();
-    private double mMaxValueSwap;
-    private float mMaxOffsetSwap;
-    private boolean mTickHasDayFormatSwap;
-
     private final RectF mViewArea = new RectF();
     private final RectF mGraphArea = new RectF();
     private final RectF mFooterArea = new RectF();
@@ -385,8 +1023,6 @@ public class TimelineChartView extends View {
     private Paint mGraphAreaBgPaint;
     private Paint mFooterAreaBgPaint;
 
-    private Paint[] mSeriesBgPaint;
-    private Paint[] mHighlightSeriesBgPaint;
     private TextPaint mTickLabelFgPaint;
 
     private final Path mCurrentPositionPath = new Path();
@@ -395,7 +1031,6 @@ public class TimelineChartView extends View {
     private long mLastTimestamp = -1;
     private float mCurrentOffset = 0.f;
     private float mLastOffset = -1.f;
-    private float mMaxOffset = 0.f;
     private float mInitialTouchOffset = 0.f;
     private float mInitialTouchX = 0.f;
     private float mInitialTouchY = 0.f;
@@ -405,15 +1040,111 @@ public class TimelineChartView extends View {
 
     private int mMaxBarItemsInScreen = 0;
     private final int[] mItemsOnScreen = new int[2];
+    // The pyramid level used to draw dense bars (0 if bars are not dense)
+    private volatile int mDenseLevel = 0;
+
+    private final TimelineOrderCache mOrderCache = new TimelineOrderCache();
+    private final BarRenderer mBarRenderer = new BarRenderer(mOrderCache);
+    private final BarGeometry mBarGeometry = new BarGeometry();
+    private int mBarsDrawCalls;
+    private int mTickLabelsDrawCalls;
+
+    // Frame timings (only measured while there is a listener)
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 1000000000L / 60;
+    private OnFrameMetricsListener mFrameMetricsListener;
+    private final FrameMetrics mFrameMetrics = new FrameMetrics();
+    private Object mFrameMetricsCallback;
+    private long mFrameTimeNanos;
+    private long mFrameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+
+    // What was drawn in the last frame, to invalidate only the items that changed
+    private DataSnapshot mDrawnSnapshot;
+    private double mDrawnAnchor;
+    private int mDrawnGraphMode;
+
+    // Display list of the bars and tick labels around the viewport (only used from the
+    // UI thread). Scrolling just translates it while the visible items are recorded in it
+    private Picture mContentPicture;
+    private boolean mContentPictureValid;
+    private DataSnapshot mContentSnapshot;
+    private int mContentModCount;
+    private int mContentGraphMode;
+    private int mContentFirstItem;
+    private int mContentLastItem;
+    private float mContentOffset;
+    private float mContentLeft;
+    private TickLabelAtlas mContentAtlas;
+    private int mContentAtlasEvictions;
+
+    // Bitmap tiles of the chart, rendered in background and composed while scrolling
+    private static final int TILE_ITEMS = 16;
+    private static final int TILES_AHEAD = 2;
+    private boolean mTileCacheEnabled;
+    private final TimelineTileCache mTileCache = new TimelineTileCache();
+    private volatile TileSpec mTileSpec;
+    private boolean mTileSpecValid;
+    private int mTileGeneration;
+    private volatile long mTileRequestFirst;
+    private volatile long mTileRequestLast;
+    private float mLastTileOffset;
+    private final AtomicBoolean mTilesScheduled = new AtomicBoolean();
+    private final Canvas mTileCanvas = new Canvas();
+    private final Date mTileDate = new Date();
+    private final BarRenderer mTileBarRenderer = new BarRenderer(null);
+    private final BarGeometry mTileBarGeometry = new BarGeometry();
+    private final ComponentCallbacks2 mTrimMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                mTileCache.release();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                mTileCache.trim(false);
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            updateTickLabelsLocale();
+        }
+
+        @Override
+        public void onLowMemory() {
+            mTileCache.release();
+        }
+    };
 
     private SimpleDateFormat[] mTickFormatter;
     private Date mTickDate;
     private SparseArray<DynamicSpannableString>[] mTickTextSpannables;
     private SparseArray<DynamicLayout>[] mTickTextLayouts;
-    private Calendar mTickCalendar;
+    // Only used from the background thread
+    private volatile TickLabelClassifier mTickLabelClassifier;
     private boolean mTickHasDayFormat;
+    private Locale mTickLabelsLocale;
     private float mTickLabelMinHeight;
 
+    // Prepared layouts of the tick labels (built in background around the viewport)
+    private static final int MIN_TICK_LABEL_LAYOUTS = 128;
+    private final TickLabelLayoutCache mTickLabelLayouts = new TickLabelLayoutCache();
+    private volatile TextPaint mTickLabelLayoutPaint;
+    private TextPaint mTickLabelTextPaint;
+    private final Paint.FontMetrics mTickLabelFontMetrics = new Paint.FontMetrics();
+    private volatile SimpleDateFormat[] mBackgroundTickFormatter;
+    private volatile int mTickLabelsFirstRow;
+    private volatile int mTickLabelsLastRow;
+    private final AtomicBoolean mTickLabelsScheduled = new AtomicBoolean();
+
+    // Rasterized tick labels (only used from the UI thread)
+    private static final int MIN_TICK_LABEL_ATLAS_CELLS = 32;
+    private boolean mTickLabelsAtlasEnabled;
+    private TickLabelAtlas mTickLabelAtlas;
+    // Released atlases are recycled once no frame drawn with them can be displayed
+    private final List<TickLabelAtlas> mRetiredTickLabelAtlases = new ArrayList<>();
+    private final List<TickLabelAtlas> mRecyclableTickLabelAtlases = new ArrayList<>();
+    private final Paint mTickLabelAtlasPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mTickLabelAtlasSrc = new Rect();
+    private final RectF mTickLabelAtlasDst = new RectF();
+
     private String[] mTickLabels;
     private String[] mTickFormats;
 
@@ -443,9 +1174,20 @@ public class TimelineChartView extends View {
     private static final int MSG_ON_LONG_CLICK_ITEM = 3;
     private static final int MSG_COMPUTE_DATA = 4;
     private static final int MSG_UPDATE_COMPUTED_DATA = 5;
+    private static final int MSG_APPEND_DATA = 6;
+    private static final int MSG_LOAD_DATA_WINDOW = 7;
+    private static final int MSG_COMPUTE_PYRAMID = 8;
+    private static final int MSG_RELOAD_DATA = 9;
+    private static final int MSG_PREPARE_TICK_LABELS = 10;
+    private static final int MSG_RENDER_TILES = 11;
+    private static final int MSG_UPDATE_DATA_WINDOW = 12;
 
     private Handler mUiHandler;
     private Handler mBackgroundHandler;
+    // Created and destroyed with the background thread
+    private ExecutorService mPostProcessExecutor;
+    // The classifiers of the threads post-processing the data
+    private final ThreadLocal<TickLabelClassifier> mPostProcessClassifiers = new ThreadLocal<>();
     private HandlerThread mBackgroundHandlerThread;
 
     private boolean mIsDataComputed;
@@ -465,8 +1207,11 @@ public class TimelineChartView extends View {
                     notifyGenericLongClickEvent((ItemEvent) msg.obj);
                     return true;
                 case MSG_UPDATE_COMPUTED_DATA:
-                    // Generate bar items palette based on background color
-                    setupSeriesBackground(mGraphAreaBgPaint.getColor());
+                    // Move to the current item in the published data
+                    updatePublishedData(true);
+
+                    // The palette was generated with the data, just notify if it changed
+                    notifyOnColorPaletteChangedIfNeeded();
                     mIsDataComputed = true;
 
                     // Redraw the data and notify the changes
@@ -479,13 +1224,40 @@ public class TimelineChartView extends View {
                         mZoomAnimator.start();
                     }
 
-                    // Update the graph view
+                    // Update the graph view (only the changed items of appended data)
+                    if (msg.arg2 == 1) {
+                        invalidateChangedItems();
+                    } else {
+                        ViewCompat.postInvalidateOnAnimation(TimelineChartView.this);
+                    }
+                    return true;
+                case MSG_UPDATE_DATA_WINDOW:
+                    // Rows don't change, so the current position is kept
+                    updatePublishedData(false);
                     ViewCompat.postInvalidateOnAnimation(TimelineChartView.this);
                     return true;
 
                 // Non-Ui thread
                 case MSG_COMPUTE_DATA:
-                    performComputeData(msg.arg1 == 1, msg.arg2 == 1);
+                    performComputeData(msg.arg1 == 1, msg.arg2 == 1, (Integer) msg.obj);
+                    return true;
+                case MSG_APPEND_DATA:
+                    performAppendData();
+                    return true;
+                case MSG_LOAD_DATA_WINDOW:
+                    performLoadDataWindow();
+                    return true;
+                case MSG_COMPUTE_PYRAMID:
+                    performComputePyramid();
+                    return true;
+                case MSG_RELOAD_DATA:
+                    performReloadData();
+                    return true;
+                case MSG_PREPARE_TICK_LABELS:
+                    performPrepareTickLabels();
+                    return true;
+                case MSG_RENDER_TILES:
+                    performRenderTiles();
                     return true;
             }
             return false;
@@ -499,7 +1271,7 @@ public class TimelineChartView extends View {
             // Avoid this operation if ContentObserver is reloading the cursor
             if (mObserverStatus != 2) {
                 mObserverStatus = 1;
-                reloadCursorData(false);
+                scheduleCursorDataReload();
                 mObserverStatus = 0;
             }
         }
@@ -520,19 +1292,14 @@ public class TimelineChartView extends View {
         }
 
         @Override
-        @SuppressWarnings("deprecation")
         public void onChange(boolean selfChange) {
             super.onChange(selfChange);
-            // This required database/disk access so, it must be execute in
-            // a background handler
+            // The cursor is requeried by the reload, so a burst of changes only
+            // requires one requery
             // Avoid this operation if DataSetObserver is reloading the cursor
             if (mObserverStatus != 1) {
-                mObserverStatus = 2;
-                synchronized (mCursorLock) {
-                    mCursor.requery();
-                }
-                reloadCursorData(false);
-                mObserverStatus = 0;
+                mRequeryPending = true;
+                scheduleCursorDataReload();
             }
         }
 
@@ -544,6 +1311,28 @@ public class TimelineChartView extends View {
     private ContentObserver mContentObserver;
     private int mObserverStatus = 0;
 
+    // Change notifications of the cursor are coalesced in a single pending reload
+    private final AtomicBoolean mReloadScheduled = new AtomicBoolean();
+    private final AtomicLong mCoalescedNotifications = new AtomicLong();
+    private volatile boolean mRequeryPending;
+    private volatile long mMinReloadInterval;
+    private volatile long mLastReloadTime;
+
+    // The generation of the observed data. Every change of the observed data (a new cursor,
+    // a new aggregation, ...) starts a new generation, cancelling the computations of
+    // the previous ones
+    private final AtomicInteger mDataGeneration = new AtomicInteger();
+
+    // Items pushed by producer threads, pending to be appended by the background thread
+    private final ConcurrentLinkedQueue<PendingPoints> mPendingPoints =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mAppendDataScheduled = new AtomicBoolean();
+
+    // The row around which load the records when data is observed in windowed mode
+    private volatile int mRequestedWindowRow;
+    private final AtomicBoolean mDataWindowScheduled = new AtomicBoolean();
+    private final AtomicBoolean mPyramidScheduled = new AtomicBoolean();
+
     private AudioManager mAudioManager;
     private MediaPlayer mSoundEffectMP;
 
@@ -557,6 +1346,7 @@ public class TimelineChartView extends View {
     private boolean mInZoomOut = false;
     private ValueAnimator mZoomAnimator;
 
+    // Only writers lock. The ui thread reads the data snapshot without locking
     private final Object mLock = new Object();
     private final Object mCursorLock = new Object();
 
@@ -703,12 +1493,21 @@ public class TimelineChartView extends View {
         super.onAttachedToWindow();
         setupBackgroundHandler();
         setupSoundEffects();
+        getContext().registerComponentCallbacks(mTrimMemoryCallbacks);
         mContentObserver = new CursorContentObserver(mBackgroundHandler);
         synchronized (mCursorLock) {
             if (mCursor != null) {
                 mCursor.registerContentObserver(mContentObserver);
             }
         }
+        if (mFrameMetricsListener != null) {
+            startFrameMetricsCallback();
+        }
+
+        // Drain the items appended while the view was detached
+        if (!mPendingPoints.isEmpty() && mAppendDataScheduled.compareAndSet(false, true)) {
+            sendAppendData();
+        }
     }
 
     /** {@inheritDoc} */
@@ -717,15 +1516,37 @@ public class TimelineChartView extends View {
         super.onDetachedFromWindow();
 
         // Destroy background thread
-        mBackgroundHandlerThread.quit();
-        mBackgroundHandler = null;
-        mBackgroundHandlerThread = null;
+        synchronized (mLock) {
+            mBackgroundHandlerThread.quit();
+            mBackgroundHandler = null;
+            mBackgroundHandlerThread = null;
+            mPostProcessExecutor.shutdown();
+            mPostProcessExecutor = null;
+            mAppendDataScheduled.set(false);
+        }
+        mDataWindowScheduled.set(false);
+        mPyramidScheduled.set(false);
+        mTickLabelsScheduled.set(false);
+        mTilesScheduled.set(false);
+        mReloadScheduled.set(false);
+        mRequeryPending = false;
 
         // Destroy cursor
         releaseCursor();
 
         // Destroy internal tracking variables
         clear();
+        releaseTickLabelAtlas();
+        recycleRetiredTickLabelAtlases(true);
+        mContentPicture = null;
+        mContentSnapshot = null;
+        mContentAtlas = null;
+        mDrawnSnapshot = null;
+        mDrawingSnapshot = null;
+        getContext().unregisterComponentCallbacks(mTrimMemoryCallbacks);
+        mTileSpec = null;
+        mTileCache.release();
+        stopFrameMetricsCallback();
         releaseSoundEffects();
         if (mVelocityTracker != null) {
             mVelocityTracker.recycle();
@@ -737,7 +1558,8 @@ public class TimelineChartView extends View {
     @Override
     protected void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
-        mTickCalendar = Calendar.getInstance(TimeZone.getDefault(), Locale.getDefault());
+        mTickLabelClassifier = new TickLabelClassifier(TimeZone.getDefault());
+        updateTickLabelsLocale();
     }
 
     /**
@@ -779,6 +1601,7 @@ public class TimelineChartView extends View {
             mFooterAreaBgPaint.setColor(color);
             mTickLabelFgPaint.setColor(MaterialPaletteHelper.isDarkColor(color)
                     ? Color.LTGRAY : Color.DKGRAY);
+            invalidateContentCaches();
             ViewCompat.postInvalidateOnAnimation(this);
         }
     }
@@ -803,6 +1626,53 @@ public class TimelineChartView extends View {
         }
     }
 
+    /**
+     * Whether the tick labels are rasterized once in a bitmap atlas.
+     */
+    public boolean isTickLabelsAtlasEnabled() {
+        return mTickLabelsAtlasEnabled;
+    }
+
+    /**
+     * Sets whether the tick labels are rasterized once in a bitmap atlas, so they are drawn
+     * as bitmaps instead of as text. This reduces the cost of drawing the labels at the
+     * expense of the memory of the atlas.
+     */
+    public void setTickLabelsAtlasEnabled(boolean enabled) {
+        if (mTickLabelsAtlasEnabled != enabled) {
+            mTickLabelsAtlasEnabled = enabled;
+            if (!enabled) {
+                releaseTickLabelAtlas();
+            }
+            invalidateContentCaches();
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    /**
+     * Whether the chart is drawn from a cache of bitmap tiles while scrolling.
+     */
+    public boolean isTileCacheEnabled() {
+        return mTileCacheEnabled;
+    }
+
+    /**
+     * Sets whether the chart is drawn from a cache of bitmap tiles while scrolling. Tiles
+     * are rendered in background (including the ones ahead in the scroll direction), so
+     * scrolling only costs a few bitmap draws. Recommended for software rendering; the
+     * tiles are released on memory pressure.
+     */
+    public void setTileCacheEnabled(boolean enabled) {
+        if (mTileCacheEnabled != enabled) {
+            mTileCacheEnabled = enabled;
+            if (!enabled) {
+                mTileSpec = null;
+                mTileCache.release();
+            }
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
     /**
      * Returns the space in pixels between bar items.
      */
@@ -857,8 +1727,9 @@ public class TimelineChartView extends View {
      */
     public void setGraphMode(int mode) {
         if (mode != mGraphMode) {
+            // The data holds the max values of every mode, so it only needs to be redrawn
             mGraphMode = mode;
-            Message.obtain(mBackgroundHandler, MSG_COMPUTE_DATA).sendToTarget();
+            ViewCompat.postInvalidateOnAnimation(this);
         }
     }
 
@@ -908,37 +1779,224 @@ public class TimelineChartView extends View {
     }
 
     /**
-     * Returns the user color palette.
+     * Returns the max number of items retained when data is observed with
+     * {@link #ONLY_ADDITIONS_OPTIMIZATION} or appended with
+     * {@link #appendPoint(long, double...)}, or {@code 0} if there is no limit.
      */
-    public int[] getUserPalette() {
-        return mUserPalette;
+    public int getRetentionMaxItems() {
+        return mRetentionMaxItems;
     }
 
     /**
-     * Sets the user color palette.
+     * Sets the max number of items retained when data is observed with
+     * {@link #ONLY_ADDITIONS_OPTIMIZATION} or appended with
+     * {@link #appendPoint(long, double...)}. Oldest items are evicted as new items
+     * are added. Use {@code 0} to retain all the items.
      */
-    public void setUserPalette(int[] userPalette) {
-        if (!Arrays.equals(mUserPalette, userPalette)) {
-            mUserPalette = userPalette;
-            setupSeriesBackground(mGraphAreaBgPaint.getColor());
-            ViewCompat.postInvalidateOnAnimation(this);
-        }
+    public void setRetentionMaxItems(int maxItems) {
+        mRetentionMaxItems = Math.max(maxItems, 0);
     }
 
     /**
-     * Returns the current color palette (it could be a combination of the user
-     * palette and the generated one).
-     * @see #setUserPalette(int[])
+     * Returns the time window (in milliseconds from the last item) of the items retained
+     * when data is observed with {@link #ONLY_ADDITIONS_OPTIMIZATION} or appended with
+     * {@link #appendPoint(long, double...)}, or {@code 0} if there is no limit.
      */
-    public int[] getCurrentPalette() {
-        return mCurrentPalette;
+    public long getRetentionTimeWindow() {
+        return mRetentionTimeWindow;
     }
 
     /**
-     * Whether play a sound effect on item selection.
+     * Sets the time window (in milliseconds from the last item) of the items retained
+     * when data is observed with {@link #ONLY_ADDITIONS_OPTIMIZATION} or appended with
+     * {@link #appendPoint(long, double...)}. Items older than the window are evicted as
+     * new items are added. Use {@code 0} to retain all the items.
      */
-    public boolean isPlaySelectionSoundEffect() {
-        return mPlaySelectionSoundEffect;
+    public void setRetentionTimeWindow(long timeWindow) {
+        mRetentionTimeWindow = Math.max(timeWindow, 0);
+    }
+
+    /**
+     * Returns the max memory (in bytes) used to cache the records read from the cursor
+     * when data is observed with {@link #WINDOWED_OPTIMIZATION}.
+     */
+    public int getWindowedCacheSize() {
+        synchronized (mCursorLock) {
+            return mDataPages.maxSize();
+        }
+    }
+
+    /**
+     * Sets the max memory (in bytes) used to cache the records read from the cursor
+     * when data is observed with {@link #WINDOWED_OPTIMIZATION}. Records far from the
+     * current viewport are evicted when the cache is full.
+     */
+    public void setWindowedCacheSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than 0");
+        }
+        synchronized (mCursorLock) {
+            mDataPages = new TimelineDataPages(size);
+        }
+    }
+
+    /**
+     * Returns the min interval (in milliseconds) between reloads of the observed data
+     * triggered by change notifications of the cursor.
+     */
+    public long getMinReloadInterval() {
+        return mMinReloadInterval;
+    }
+
+    /**
+     * Sets the min interval (in milliseconds) between reloads of the observed data
+     * triggered by change notifications of the cursor. Notifications received while a
+     * reload is pending are coalesced into it, so the data is reloaded at most once per
+     * interval, and always after the last change. Defaults to {@code 0} (reload as soon as
+     * the pending reload is processed).
+     */
+    public void setMinReloadInterval(long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Interval must be greater or equal than 0");
+        }
+        mMinReloadInterval = interval;
+    }
+
+    /**
+     * Returns the number of change notifications of the observed cursor that were
+     * coalesced into an already pending reload.
+     * @see #setMinReloadInterval(long)
+     */
+    public long getCoalescedNotificationsCount() {
+        return mCoalescedNotifications.get();
+    }
+
+    /**
+     * Returns the number of draw calls used to draw the bars in the last frame. The bars
+     * are batched by color, so this is usually the number of colors on screen.
+     */
+    public int getBarsDrawCallsCount() {
+        return mBarsDrawCalls;
+    }
+
+    /**
+     * Returns the aggregation applied to the records.
+     * @see #setAggregation(int, int)
+     */
+    public int getAggregation() {
+        return mAggregation;
+    }
+
+    /**
+     * Returns the interval (in milliseconds) of the records aggregated with
+     * {@link #AGGREGATION_INTERVAL}.
+     */
+    public long getAggregationInterval() {
+        return mAggregationInterval;
+    }
+
+    /**
+     * Returns how the aggregated records are reduced.
+     * @see #setAggregation(int, int)
+     */
+    public int getAggregationReducer() {
+        return mAggregationReducer;
+    }
+
+    /**
+     * Sets how the records are aggregated in buckets of time before being displayed. Every
+     * bucket is displayed as an item whose timestamp is the start of the bucket. Records
+     * must be sorted ascending by timestamp. Aggregation is not applied to data observed
+     * with {@link #WINDOWED_OPTIMIZATION}.
+     *
+     * @param aggregation the size of the buckets (hour, day, week or month).
+     * @param reducer how the values of the records of a bucket are reduced.
+     * @see #AGGREGATION_NONE
+     * @see #AGGREGATION_HOUR
+     * @see #AGGREGATION_DAY
+     * @see #AGGREGATION_WEEK
+     * @see #AGGREGATION_MONTH
+     * @see #AGGREGATION_REDUCER_SUM
+     * @see #AGGREGATION_REDUCER_AVG
+     * @see #AGGREGATION_REDUCER_MAX
+     * @see #AGGREGATION_REDUCER_LAST
+     */
+    public void setAggregation(int aggregation, int reducer) {
+        if (aggregation < AGGREGATION_NONE || aggregation >= AGGREGATION_INTERVAL) {
+            throw new IllegalArgumentException("Unsupported aggregation " + aggregation);
+        }
+        setupAggregation(aggregation, 0, reducer);
+    }
+
+    /**
+     * Sets that records are aggregated in buckets of a fixed interval of time (aligned
+     * to the epoch) before being displayed.
+     *
+     * @param interval the size of the buckets in milliseconds.
+     * @param reducer how the values of the records of a bucket are reduced.
+     * @see #setAggregation(int, int)
+     */
+    public void setAggregationInterval(long interval, int reducer) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Interval must be greater than 0");
+        }
+        setupAggregation(AGGREGATION_INTERVAL, interval, reducer);
+    }
+
+    private void setupAggregation(int aggregation, long interval, int reducer) {
+        if (reducer < AGGREGATION_REDUCER_SUM || reducer > AGGREGATION_REDUCER_LAST) {
+            throw new IllegalArgumentException("Unsupported aggregation reducer " + reducer);
+        }
+        if (mAggregation != aggregation || mAggregationInterval != interval
+                || mAggregationReducer != reducer) {
+            mAggregation = aggregation;
+            mAggregationInterval = interval;
+            mAggregationReducer = reducer;
+            mAggregator = aggregation == AGGREGATION_NONE
+                    ? null : new TimelineAggregator(aggregation, interval, reducer);
+            mDataGeneration.incrementAndGet();
+
+            // Aggregate the data again (the cursor can be swapped meanwhile)
+            synchronized (mCursorLock) {
+                if (mCursor != null) {
+                    reloadCursorData(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the user color palette.
+     */
+    public int[] getUserPalette() {
+        return mUserPalette;
+    }
+
+    /**
+     * Sets the user color palette.
+     */
+    public void setUserPalette(int[] userPalette) {
+        if (!Arrays.equals(mUserPalette, userPalette)) {
+            mUserPalette = userPalette;
+            setupSeriesBackground(mGraphAreaBgPaint.getColor());
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    /**
+     * Returns the current color palette (it could be a combination of the user
+     * palette and the generated one).
+     * @see #setUserPalette(int[])
+     */
+    public int[] getCurrentPalette() {
+        return mCurrentPalette;
+    }
+
+    /**
+     * Whether play a sound effect on item selection.
+     */
+    public boolean isPlaySelectionSoundEffect() {
+        return mPlaySelectionSoundEffect;
     }
 
     /**
@@ -1030,6 +2088,35 @@ public class TimelineChartView extends View {
         mOnColorPaletteChangedCallbacks.remove(cb);
     }
 
+    /**
+     * Returns the callback which listen for the timings of the drawn frames.
+     * @see com.ruesga.timelinechart.TimelineChartView.OnFrameMetricsListener
+     */
+    public OnFrameMetricsListener getFrameMetricsListener() {
+        return mFrameMetricsListener;
+    }
+
+    /**
+     * Sets the callback which will listen for the timings of the drawn frames, or null to
+     * stop measuring them. Frames are only measured while there is a listener. The vsync
+     * deadlines are tracked with the {@link android.view.Choreographer}, so missed
+     * deadlines are only reported since Jelly Bean.
+     * @see com.ruesga.timelinechart.TimelineChartView.OnFrameMetricsListener
+     */
+    public void setFrameMetricsListener(OnFrameMetricsListener cb) {
+        if (mFrameMetricsListener == cb) {
+            return;
+        }
+        mFrameMetricsListener = cb;
+        mFrameMetrics.mMissedDeadlineCount = 0;
+        mFrameTimeNanos = 0;
+        if (cb != null) {
+            startFrameMetricsCallback();
+        } else {
+            stopFrameMetricsCallback();
+        }
+    }
+
     /**
      * Registers the cursor and start observing changes on it. This method won't perform
      * any sort of optimization in the data processing.
@@ -1059,8 +2146,15 @@ public class TimelineChartView extends View {
      * @see #NO_OPTIMIZATION
      * @see #NO_DELETES_OPTIMIZATION
      * @see #ONLY_ADDITIONS_OPTIMIZATION
+     * @see #WINDOWED_OPTIMIZATION
      */
     public void observeData(Cursor c, int flag) {
+        // Cancel the computation of the current cursor (if any) before waiting for it,
+        // and discard its results
+        synchronized (mLock) {
+            mDataGeneration.incrementAndGet();
+            mPendingSnapshot = null;
+        }
         synchronized (mCursorLock) {
             checkCursorIntegrity(c);
 
@@ -1073,6 +2167,8 @@ public class TimelineChartView extends View {
 
             // Save the cursor reference and listen for changes
             mCursor = c;
+            mCursorWatermark = -1;
+            mCoalescedNotifications.set(0);
             mOptimizationFlag = flag;
             reloadCursorData(animate);
             mCursor.registerDataSetObserver(mDataSetObserver);
@@ -1082,10 +2178,96 @@ public class TimelineChartView extends View {
         }
     }
 
+    /**
+     * Returns the provider used to query only the new records of the observed data.
+     * @see #setIncrementalDataProvider(IncrementalDataProvider)
+     */
+    public IncrementalDataProvider getIncrementalDataProvider() {
+        return mIncrementalDataProvider;
+    }
+
+    /**
+     * Sets the provider used to query only the new records of the observed data when
+     * the view observes data with {@link #ONLY_ADDITIONS_OPTIMIZATION}, so the cost of
+     * every update only depends on the number of new records. Without a provider, the
+     * view reads the new records from the observed cursor, starting at the number of
+     * records read in the last update.
+     */
+    public void setIncrementalDataProvider(IncrementalDataProvider provider) {
+        synchronized (mCursorLock) {
+            mIncrementalDataProvider = provider;
+        }
+    }
+
+    /**
+     * Appends a new item to the data of the view, without the need of a {@link Cursor}.
+     * This method can be called from any thread. Items are handed to the background
+     * thread through a lock-free queue, so it is suitable for high frequency feeds
+     * (like sensors).<p />
+     *
+     * Items must be appended in ascending order of timestamp; items not newer than the
+     * last item of the view are ignored. The retention limits set with
+     * {@link #setRetentionMaxItems(int)} and {@link #setRetentionTimeWindow(long)} are
+     * applied to the appended items.
+     *
+     * @param timestamp the timestamp of the item.
+     * @param values the values of every serie of the item. If the number of series
+     *               differs from the one of the current data, the current data is discarded.
+     * @see #appendPoints(long[], double[])
+     */
+    public void appendPoint(long timestamp, double... values) {
+        if (values.length == 0) {
+            throw new IllegalArgumentException("The item must have at least one serie");
+        }
+        offerPoints(new PendingPoints(new long[]{timestamp}, values.clone()));
+    }
+
+    /**
+     * Appends a set of items to the data of the view, without the need of a {@link Cursor}.
+     * This method can be called from any thread.
+     *
+     * @param timestamps the timestamps of the items, in ascending order.
+     * @param values the values of every serie of the items, flatten as
+     *               {@code values[item * series + serie]}.
+     * @see #appendPoint(long, double...)
+     */
+    public void appendPoints(long[] timestamps, double[] values) {
+        if (timestamps.length == 0) {
+            return;
+        }
+        if (values.length == 0 || values.length % timestamps.length != 0) {
+            throw new IllegalArgumentException("All the items must have the same series");
+        }
+        offerPoints(new PendingPoints(timestamps.clone(), values.clone()));
+    }
+
+    private void offerPoints(PendingPoints points) {
+        mPendingPoints.offer(points);
+
+        // Only wake up the background thread if it isn't going to drain the queue yet
+        if (mAppendDataScheduled.compareAndSet(false, true)) {
+            sendAppendData();
+        }
+    }
+
+    private void sendAppendData() {
+        // The handler is destroyed when the view is detached (from the UI thread)
+        synchronized (mLock) {
+            final Handler handler = mBackgroundHandler;
+            if (handler == null) {
+                // The queue is drained when the view is attached again
+                mAppendDataScheduled.set(false);
+                return;
+            }
+            Message.obtain(handler, MSG_APPEND_DATA).sendToTarget();
+        }
+    }
+
     @Override
     public boolean canScrollHorizontally(int direction) {
         final float x = mScroller.getCurrX();
-        return (direction < 0 && x < mMaxOffset) || (direction > 0 && x > 0);
+        final float maxOffset = mSnapshot.mMaxOffset;
+        return (direction < 0 && x < maxOffset) || (direction > 0 && x > 0);
     }
 
     @Override
@@ -1143,13 +2325,14 @@ public class TimelineChartView extends View {
                 if (Math.abs(diffX) > mTouchSlop || mState >= STATE_MOVING) {
                     mUiHandler.removeCallbacks(mLongPressDetector);
 
+                    final float maxOffset = mSnapshot.mMaxOffset;
                     mCurrentOffset = mInitialTouchOffset + diffX;
                     if (mCurrentOffset < 0) {
                         onOverScroll();
                         mCurrentOffset = 0;
-                    } else if (mCurrentOffset > mMaxOffset) {
+                    } else if (mCurrentOffset > maxOffset) {
                         onOverScroll();
-                        mCurrentOffset = mMaxOffset;
+                        mCurrentOffset = maxOffset;
                     }
                     mVelocityTracker.computeCurrentVelocity(1000, mMaxFlingVelocity);
                     mState = STATE_MOVING;
@@ -1173,7 +2356,8 @@ public class TimelineChartView extends View {
                     mScroller.forceFinished(true);
                     mState = STATE_FLINGING;
                     releaseEdgeEffects();
-                    mScroller.fling((int) mCurrentOffset, 0, velocity, 0, 0, (int) mMaxOffset, 0, 0);
+                    mScroller.fling((int) mCurrentOffset, 0, velocity, 0, 0,
+                            (int) mSnapshot.mMaxOffset, 0, 0);
                     ViewCompat.postInvalidateOnAnimation(this);
                 } else {
                     // Reset scrolling state
@@ -1200,16 +2384,15 @@ public class TimelineChartView extends View {
     }
 
     private void onOverScroll() {
-        final boolean needOverScroll;
-        synchronized (mLock) {
-            needOverScroll = mData.size() >= Math.floor(mMaxBarItemsInScreen / 2);
-        }
+        final DataSnapshot snapshot = mSnapshot;
+        final boolean needOverScroll =
+                snapshot.mData.size() >= Math.floor(mMaxBarItemsInScreen / 2);
         final int overScrollMode = getOverScrollMode();
         if (overScrollMode == OVER_SCROLL_ALWAYS ||
                 (overScrollMode == OVER_SCROLL_IF_CONTENT_SCROLLS && needOverScroll)) {
             boolean needsInvalidate = false;
-            if (mCurrentOffset > mMaxOffset) {
-                mEdgeEffectLeft.onPull(mCurrentOffset - mMaxOffset);
+            if (mCurrentOffset > snapshot.mMaxOffset) {
+                mEdgeEffectLeft.onPull(mCurrentOffset - snapshot.mMaxOffset);
                 needsInvalidate = true;
             }
             if (mCurrentOffset < 0) {
@@ -1234,25 +2417,25 @@ public class TimelineChartView extends View {
         }
 
         // Determine whether we still scrolling and needs a viewport refresh
+        final DataSnapshot snapshot = mSnapshot;
         final boolean scrolling = mScroller.computeScrollOffset();
         if (scrolling) {
             float x = mScroller.getCurrX();
-            if (x > mMaxOffset || x < 0) {
+            if (x > snapshot.mMaxOffset || x < 0) {
                 return;
             }
             mCurrentOffset = x;
             ViewCompat.postInvalidateOnAnimation(this);
         } else if (mState > STATE_MOVING) {
             boolean needsInvalidate = false;
-            final boolean needOverScroll;
-            synchronized (mLock) {
-                needOverScroll = mData.size() >= Math.floor(mMaxBarItemsInScreen / 2);
-            }
+            final boolean needOverScroll =
+                    snapshot.mData.size() >= Math.floor(mMaxBarItemsInScreen / 2);
             final int overScrollMode = getOverScrollMode();
             if (overScrollMode == OVER_SCROLL_ALWAYS || (needOverScroll &&
                     overScrollMode == OVER_SCROLL_IF_CONTENT_SCROLLS)) {
                 float x = mScroller.getCurrX();
-                if (x >= mMaxOffset && mEdgeEffectLeft.isFinished() && !mEdgeEffectLeftActive) {
+                if (x >= snapshot.mMaxOffset
+                        && mEdgeEffectLeft.isFinished() && !mEdgeEffectLeftActive) {
                     mEdgeEffectLeft.onAbsorb((int) mScroller.getCurrVelocity());
                     mEdgeEffectLeftActive = true;
                     needsInvalidate = true;
@@ -1264,9 +2447,10 @@ public class TimelineChartView extends View {
                 }
             }
             if (!needsInvalidate) {
-                // Reset state
+                // Reset state (the current item is highlighted again)
                 mState = STATE_IDLE;
                 mLastTimestamp = -1;
+                invalidateHighlightedItem();
             } else {
                 ViewCompat.postInvalidateOnAnimation(this);
             }
@@ -1357,12 +2541,9 @@ public class TimelineChartView extends View {
             return null;
         }
 
-        final LongSparseArray<Pair<double[], int[]>> data;
-        final double maxValue;
-        synchronized (mLock) {
-            data = mData;
-            maxValue = mMaxValue;
-        }
+        final DataSnapshot snapshot = mSnapshot;
+        final TimelineData data = snapshot.mData;
+        final double maxValue = snapshot.mMaxValues.get(mGraphMode);
         int size = data.size() -1;
         if (size <= 0) {
             return null;
@@ -1379,55 +2560,54 @@ public class TimelineChartView extends View {
 
         // So we are in an bar area, so we have a valid index
         final int index = size - ((int) Math.ceil((offset - (mBarItemWidth / 2)) / mBarWidth));
-        if (index < 0 || index >= data.size()) {
-            return null;
-        }
-        final Pair<double[], int[]> o = data.valueAt(index);
-        if (o == null) {
+        if (index < 0 || index >= data.size() || !data.isLoaded(index)) {
             return null;
         }
 
         final float halfItemBarWidth = (mBarItemWidth / 2);
         final ItemEvent itemEvent = new ItemEvent();
-        itemEvent.mTimestamp = data.keyAt(index);
+        itemEvent.mTimestamp = data.timestampAt(index);
         if (mShowFooter && mFooterArea.contains(mLastX, mLastY)) {
             // Tap in the bar area means we cannot extract the serie
             itemEvent.mSerie = -1;
         } else {
             // Determine if the tap happens in a drawing area (and to what serie belongs)
-            final double[] values = o.first;
-            final int[] indexes = o.second;
+            final int count = data.series();
+            mOrderCache.bind(data, mMaxBarItemsInScreen);
             final float height = mGraphArea.height();
             float y1, y2 = mGraphArea.height();
             final float cx = mGraphArea.left + (mGraphArea.width() / 2);
-            final float x = cx + (mCurrentOffset - computeOffsetForTimestamp(itemEvent.mTimestamp));
+            final float x = cx + (mCurrentOffset
+                    - computeOffsetForTimestamp(data, itemEvent.mTimestamp));
 
             itemEvent.mSerie = -1;
             if (mGraphMode != GRAPH_MODE_BARS_STACK) {
-                int count = values.length;
                 float x1 = x - halfItemBarWidth;
                 float x2 = x + halfItemBarWidth;
-                float bw = mBarItemWidth / mSeries;
+                float bw = mBarItemWidth / count;
 
                 for (int j = 0; j < count; j++) {
                     y2 = height;
+                    final int serie;
                     if (mGraphMode == GRAPH_MODE_BARS_SIDE_BY_SIDE) {
-                        y1 = (float) (height - ((height * ((values[j] * 100) / maxValue)) / 100));
+                        serie = j;
                         x1 = x - halfItemBarWidth + (bw * j);
                         x2 = x1 + bw;
                     } else {
-                        y1 = (float) (height - ((height * ((values[j] * 100) / maxValue)) / 100));
+                        serie = mOrderCache.orderAt(index, j);
                     }
+                    final double v = data.valueAt(index, serie);
+                    y1 = (float) (height - ((height * ((v * 100) / maxValue)) / 100));
                     mSerieRect.set(x1, y1, x2, y2);
                     if (mSerieRect.contains(mLastX, mLastY)) {
-                        itemEvent.mSerie = indexes[j];
+                        itemEvent.mSerie = serie;
                         break;
                     }
                 }
             } else {
-                int count = values.length;
                 for (int j = 0; j < count; j++) {
-                    float h = (float) ((height * ((values[j] * 100) / maxValue)) / 100);
+                    final double v = data.valueAt(index, j);
+                    float h = (float) ((height * ((v * 100) / maxValue)) / 100);
                     y1 = y2 - h;
                     mSerieRect.set(x - halfItemBarWidth, y1, x + halfItemBarWidth, y2);
                     if (mSerieRect.contains(mLastX, mLastY)) {
@@ -1447,10 +2627,7 @@ public class TimelineChartView extends View {
     }
 
     private long computeTimestampFromOffset(float offset) {
-        final LongSparseArray<Pair<double[], int[]>> data;
-        synchronized (mLock) {
-            data = mData;
-        }
+        final TimelineData data = mSnapshot.mData;
         int size = data.size() -1;
         if (size < 0) {
             return -1;
@@ -1463,17 +2640,20 @@ public class TimelineChartView extends View {
             return -1;
         }
 
-        // So we are in an bar area, so we have a valid index
+        // So we are in an bar area, so we have a valid index (if the item is loaded)
         final int index = size - ((int) Math.ceil((offset - (mBarItemWidth / 2)) / mBarWidth));
-        return data.keyAt(index);
+        if (!data.isLoaded(index)) {
+            return -1;
+        }
+        return data.timestampAt(index);
     }
 
     private float computeOffsetForTimestamp(long timestamp) {
-        final LongSparseArray<Pair<double[], int[]>> data;
-        synchronized (mLock) {
-            data = mData;
-        }
-        final int index = data.indexOfKey(timestamp);
+        return computeOffsetForTimestamp(mSnapshot.mData, timestamp);
+    }
+
+    private float computeOffsetForTimestamp(TimelineData data, long timestamp) {
+        final int index = data.indexOf(timestamp);
         if (index >= 0) {
             final int size = data.size();
             return (mBarWidth * (size - index - 1));
@@ -1482,23 +2662,34 @@ public class TimelineChartView extends View {
     }
 
     private long computeNearestTimestampFromOffset(float offset) {
-        final LongSparseArray<Pair<double[], int[]>> data;
-        synchronized (mLock) {
-            data = mData;
-        }
+        final TimelineData data = mSnapshot.mData;
         int size = data.size() -1;
         if (size < 0) {
             return -1;
         }
 
-        // So we are in an bar area, so we have a valid index
+        // So we are in an bar area, so we have a valid index (if the item is loaded)
         final int index = size - ((int) Math.ceil((offset - (mBarItemWidth / 2)) / mBarWidth));
-        return data.keyAt(index);
+        if (!data.isLoaded(index)) {
+            return -1;
+        }
+        return data.timestampAt(index);
     }
 
     /** {@inheritDoc} */
     @Override
     protected void onDraw(Canvas c) {
+        // Frames are only measured if someone is listening
+        final OnFrameMetricsListener metricsListener = mFrameMetricsListener;
+        final long start = metricsListener != null ? System.nanoTime() : 0;
+        long backgroundsEnd = start;
+        long barsEnd = start;
+        long tickLabelsEnd = start;
+        boolean cached = false;
+        mBarsDrawCalls = 0;
+        mTickLabelsDrawCalls = 0;
+        recycleRetiredTickLabelAtlases(false);
+
         // 1.- Clip to padding
         c.clipRect(mViewArea);
 
@@ -1507,190 +2698,800 @@ public class TimelineChartView extends View {
         if (mShowFooter) {
             c.drawRect(mFooterArea, mFooterAreaBgPaint);
         }
-
-        final LongSparseArray<Pair<double[], int[]>> data;
-        final double maxValue;
-        synchronized (mLock) {
-            data = mData;
-            maxValue = mMaxValue;
+        if (metricsListener != null) {
+            backgroundsEnd = barsEnd = tickLabelsEnd = System.nanoTime();
         }
+
+        final DataSnapshot snapshot = mSnapshot;
+        mDrawingSnapshot = snapshot;
+        final TimelineData data = snapshot.mData;
         boolean hasData = data.size() > 0;
         if (hasData && mIsDataComputed) {
             // 3.- Compute viewport and draw the data
             computeItemsOnScreen(data);
-            drawBarItems(c, data, maxValue);
+            mOrderCache.bind(data, mMaxBarItemsInScreen);
+            cached = drawTiles(c, snapshot) || drawContentPicture(c, snapshot);
+            if (!cached) {
+                drawBarItems(c, snapshot, mItemsOnScreen[0], mItemsOnScreen[1], true);
+                if (metricsListener != null) {
+                    barsEnd = System.nanoTime();
+                }
+                if (mShowFooter) {
+                    drawTickLabels(c, data, mItemsOnScreen[0], mItemsOnScreen[1]);
+                }
+            }
 
-            // 4.- Draw tick labels and current position
+            // 4.- Draw current position
             if (mShowFooter) {
-                drawTickLabels(c, data);
                 c.drawPath(mCurrentPositionPath, mFooterAreaBgPaint);
             }
+            mDrawnSnapshot = snapshot;
+            mDrawnAnchor = computeAnchor(data);
+            mDrawnGraphMode = mGraphMode;
+            if (metricsListener != null) {
+                tickLabelsEnd = System.nanoTime();
+                if (cached) {
+                    barsEnd = tickLabelsEnd;
+                }
+            }
         }
 
         // Draw the edge scrolling effects
         drawEdgeEffects(c);
+
+        if (metricsListener != null) {
+            final FrameMetrics metrics = mFrameMetrics;
+            metrics.mVisibleItems = hasData && mIsDataComputed
+                    ? mItemsOnScreen[1] - mItemsOnScreen[0] + 1 : 0;
+            metrics.mBarsDrawCalls = mBarsDrawCalls;
+            metrics.mTickLabelsDrawCalls = cached ? 0 : mTickLabelsDrawCalls;
+            dispatchFrameMetrics(metricsListener, start, backgroundsEnd,
+                    barsEnd, tickLabelsEnd, System.nanoTime());
+        }
     }
 
-    private void drawBarItems(Canvas c, LongSparseArray<Pair<double[], int[]>> data,
-            double maxValue) {
+    private void dispatchFrameMetrics(OnFrameMetricsListener listener, long start,
+            long backgroundsEnd, long barsEnd, long tickLabelsEnd, long end) {
+        final FrameMetrics metrics = mFrameMetrics;
+        metrics.mBackgroundsNanos = backgroundsEnd - start;
+        metrics.mBarsNanos = barsEnd - backgroundsEnd;
+        metrics.mTickLabelsNanos = tickLabelsEnd - barsEnd;
+        metrics.mEdgeEffectsNanos = end - tickLabelsEnd;
+        metrics.mTotalNanos = end - start;
+
+        // The vsync of the frame is only known if the frame was started by the choreographer
+        // (and not by a draw outside a frame, ie: a draw into a bitmap)
+        final long frameTime = mFrameTimeNanos;
+        if (frameTime > 0 && start - frameTime < mFrameIntervalNanos) {
+            metrics.mFrameTimeNanos = frameTime;
+            metrics.mMissedDeadline = end > frameTime + mFrameIntervalNanos;
+            if (metrics.mMissedDeadline) {
+                metrics.mMissedDeadlineCount++;
+            }
+        } else {
+            metrics.mFrameTimeNanos = 0;
+            metrics.mMissedDeadline = false;
+        }
+        listener.onFrameMetrics(metrics);
+    }
 
-        final float halfItemBarWidth = mBarItemWidth / 2;
-        final float height = mGraphArea.height();
-        final Paint[] seriesBgPaint;
-        final Paint[] highlightSeriesBgPaint;
-        synchronized (mLock) {
-            seriesBgPaint = mSeriesBgPaint;
-            highlightSeriesBgPaint = mHighlightSeriesBgPaint;
+    private void startFrameMetricsCallback() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                || !ViewCompat.isAttachedToWindow(this)) {
+            return;
         }
+        mFrameIntervalNanos = computeFrameIntervalNanos();
+        postFrameMetricsCallback();
+    }
 
-        // Apply zoom animation
-        final float zoom = mCurrentZoom;
-        final float cx = mGraphArea.left + (mGraphArea.width() / 2);
-        int restoreCount = 0;
-        if (zoom != 1.f) {
-            restoreCount = c.save();
-            c.scale(zoom, zoom, cx, mGraphArea.bottom);
+    private void stopFrameMetricsCallback() {
+        if (mFrameMetricsCallback != null) {
+            removeFrameMetricsCallback();
         }
+        mFrameTimeNanos = 0;
+    }
 
-        final int size = data.size() - 1;
-        for (int i = mItemsOnScreen[1]; i >= mItemsOnScreen[0]; i--) {
-            final float x = cx + mCurrentOffset - (mBarWidth * (size - i));
-            float bw = mBarItemWidth / mSeries;
-            double[] values = data.valueAt(i).first;
-            int[] indexes = data.valueAt(i).second;
-
-            float y1, y2 = height;
-            float x1 = x - halfItemBarWidth, x2 = x + halfItemBarWidth;
-            if (mGraphMode != GRAPH_MODE_BARS_STACK) {
-                int count = values.length - 1;
-                for (int j = count, n = 0; j >= 0; j--, n++) {
-                    y2 = height;
-                    final Paint paint;
-                    if (mGraphMode == GRAPH_MODE_BARS_SIDE_BY_SIDE) {
-                        y1 = (float) (height - ((height * ((values[n] * 100) / maxValue)) / 100));
-                        x1 = x - halfItemBarWidth + (bw * n);
-                        x2 = x1 + bw;
-                        paint = (x - halfItemBarWidth) < cx && (x + halfItemBarWidth) > cx &&
-                                (mLastTimestamp == mCurrentTimestamp ||
-                                        (mState != STATE_SCROLLING))
-                                ? highlightSeriesBgPaint[indexes[n]] : seriesBgPaint[indexes[n]];
-                    } else {
-                        y1 = (float) (height - ((height * ((values[j] * 100) / maxValue)) / 100));
-                        paint = x1 < cx && x2 > cx &&
-                                (mLastTimestamp == mCurrentTimestamp ||
-                                        (mState != STATE_SCROLLING))
-                                ? highlightSeriesBgPaint[indexes[j]] : seriesBgPaint[indexes[j]];
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameMetricsCallback() {
+        if (mFrameMetricsCallback == null) {
+            // Records the vsync time of every frame while there is a listener
+            mFrameMetricsCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mFrameTimeNanos = frameTimeNanos;
+                    if (mFrameMetricsListener != null) {
+                        Choreographer.getInstance().postFrameCallback(this);
                     }
-
-                    c.drawRect(
-                            x1,
-                            mGraphArea.top + y1,
-                            x2,
-                            mGraphArea.top + y2,
-                            paint);
                 }
-            } else {
-                int count = values.length;
-                for (int j = 0; j < count; j++) {
-                    float h = (float) ((height * ((values[j] * 100) / maxValue)) / 100);
-                    y1 = y2 - h;
+            };
+        }
+        final Choreographer.FrameCallback cb = (Choreographer.FrameCallback) mFrameMetricsCallback;
+        Choreographer.getInstance().removeFrameCallback(cb);
+        Choreographer.getInstance().postFrameCallback(cb);
+    }
 
-                    final Paint paint = x1 < cx && x2 > cx &&
-                            (mLastTimestamp == mCurrentTimestamp ||
-                                    (mState != STATE_SCROLLING))
-                            ? highlightSeriesBgPaint[indexes[j]] : seriesBgPaint[indexes[j]];
-                    c.drawRect(
-                            x1,
-                            mGraphArea.top + y1,
-                            x2,
-                            mGraphArea.top + y2,
-                            paint);
-                    y2 -= h;
-                }
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeFrameMetricsCallback() {
+        Choreographer.getInstance().removeFrameCallback(
+                (Choreographer.FrameCallback) mFrameMetricsCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private long computeFrameIntervalNanos() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            final Display display = getDisplay();
+            if (display != null && display.getRefreshRate() > 0) {
+                return (long) (1000000000L / display.getRefreshRate());
             }
         }
+        return DEFAULT_FRAME_INTERVAL_NANOS;
+    }
 
-        // Restore from zoom
-        if (zoom != 1.f) {
-            c.restoreToCount(restoreCount);
+    private boolean drawContentPicture(Canvas c, DataSnapshot snapshot) {
+        // Zoom animations redraw everything, and hardware accelerated canvases only
+        // support pictures since M
+        if (mCurrentZoom != 1.f || (c.isHardwareAccelerated()
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.M)) {
+            return false;
         }
-    }
 
-    private void drawTickLabels(Canvas c, LongSparseArray<Pair<double[], int[]>> data) {
-        final float alphaVariation = MAX_ZOOM_OUT - MIN_ZOOM_OUT;
-        final float alpha = MAX_ZOOM_OUT - mCurrentZoom;
-        mTickLabelFgPaint.setAlpha((int) ((alpha * 255) / alphaVariation));
+        final int first = mItemsOnScreen[0];
+        final int last = mItemsOnScreen[1];
+        final TimelineData data = snapshot.mData;
+        if (mContentPicture == null || !mContentPictureValid || mContentSnapshot != snapshot
+                || mContentModCount != data.modCount() || mContentGraphMode != mGraphMode
+                || first < mContentFirstItem || last > mContentLastItem
+                || mContentAtlas != mTickLabelAtlas || (mContentAtlas != null
+                        && mContentAtlas.evictions() != mContentAtlasEvictions)) {
+            recordContentPicture(snapshot, first, last);
+        }
 
-        final int size = data.size() - 1;
-        final float cx = mGraphArea.left + (mGraphArea.width() / 2);
-        for (int i = mItemsOnScreen[1]; i >= mItemsOnScreen[0]; i--) {
-            // Update the dynamic layout
-            long timestamp = data.keyAt(i);
-            final int tickFormat = getTickLabelFormat(timestamp);
-            mTickDate.setTime(timestamp);
-            final String text = mTickFormatter[tickFormat].format(mTickDate)
-                    .replace(".", "")
-                    .toUpperCase(Locale.getDefault());
-            DynamicSpannableString spannable =
-                    mTickTextSpannables[tickFormat].get(text.length());
-            if (spannable == null) {
-                // If we don't have an spannable for the text length, create a new one
-                // that allow to use it now and in the future. Doing this here (on draw)
-                // is not the best, but it supposed to only be performed one time per
-                // different tick text length
-                spannable = createSpannableTick(tickFormat, text);
-                mTickTextSpannables[tickFormat].put(text.length(), spannable);
-            }
-            spannable.update(text);
-
-            DynamicLayout layout = mTickTextLayouts[tickFormat].get(text.length());
-            if (layout == null) {
-                // Update the layout as well
-                layout = new DynamicLayout(spannable, mTickLabelFgPaint,
-                        (int) mBarItemWidth, Layout.Alignment.ALIGN_CENTER, 1.0f, 1.0f, false);
-                mTickTextLayouts[tickFormat].put(text.length(), layout);
-            }
-
-            // Calculate the x position and draw the layout
-            final float x = cx + mCurrentOffset - (mBarWidth * (size - i))
-                    - (layout.getWidth() / 2);
-            final int restoreCount = c.save();
-            c.translate(x, mFooterArea.top
-                    + (mFooterArea.height() / 2 - mTickLabelMinHeight / 2));
-            layout.draw(c);
-            c.restoreToCount(restoreCount);
+        // Replay the display list at the current offset
+        final int restoreCount = c.save();
+        c.translate(mContentLeft + mCurrentOffset - mContentOffset, 0);
+        c.drawPicture(mContentPicture);
+        c.restoreToCount(restoreCount);
+        int drawCalls = 1;
+
+        // The highlighted item isn't recorded, since it changes while scrolling
+        mBarsDrawCalls = drawCalls + drawHighlightedItem(c, snapshot, first, last);
+        return true;
+    }
+
+    private int drawHighlightedItem(Canvas c, DataSnapshot snapshot, int first, int last) {
+        final int highlighted = computeHighlightedItem(snapshot.mData, first, last);
+        if (highlighted == -1) {
+            return 0;
         }
+        drawBarItems(c, snapshot, highlighted, highlighted, true);
+        return mBarsDrawCalls;
     }
 
-    private void drawEdgeEffects(Canvas c) {
-        boolean needsInvalidate = false;
+    private boolean drawTiles(Canvas c, DataSnapshot snapshot) {
+        // Zoom animations are drawn directly
+        if (!mTileCacheEnabled || mCurrentZoom != 1.f) {
+            return false;
+        }
 
-        if (mEdgeEffectLeft != null && !mEdgeEffectLeft.isFinished()) {
-            final int restoreCount = c.save();
-            c.rotate(270);
-            c.translate(-mGraphArea.height() - mGraphArea.top, mGraphArea.left);
-            mEdgeEffectLeft.setSize((int) mGraphArea.height(), (int) mGraphArea.width());
-            needsInvalidate = mEdgeEffectLeft.draw(c);
-            c.restoreToCount(restoreCount);
+        final TimelineData data = snapshot.mData;
+        TileSpec spec = mTileSpec;
+        if (spec == null || !mTileSpecValid || spec.mSnapshot != snapshot
+                || spec.mModCount != data.modCount()
+                || spec.mGeometry.mGraphMode != mGraphMode
+                || spec.mGeometry.mDenseLevel != mDenseLevel) {
+            spec = createTileSpec(snapshot);
+            mTileSpec = spec;
+            mTileSpecValid = true;
+        }
+        if (mDenseLevel > 0 && snapshot.mPyramid == null) {
+            // Tiles draw every bar until the aggregations are available
+            requestPyramid();
         }
 
-        if (mEdgeEffectRight != null && !mEdgeEffectRight.isFinished()) {
-            final int restoreCount = c.save();
-            c.rotate(90);
-            c.translate(mGraphArea.top,
-                    -getWidth() + (getWidth() - mGraphArea.right));
-            mEdgeEffectRight.setSize((int) mGraphArea.height(), (int) mGraphArea.width());
-            needsInvalidate |= mEdgeEffectRight.draw(c);
-            c.restoreToCount(restoreCount);
+        // Render the visible tiles and the ones ahead in the scroll direction
+        final int first = mItemsOnScreen[0];
+        final int last = mItemsOnScreen[1];
+        final long evicted = data.evicted();
+        final int items = spec.mTileItems;
+        final long firstTile = (first + evicted) / items;
+        final long lastTile = (last + evicted) / items;
+        final float delta = mCurrentOffset - mLastTileOffset;
+        mLastTileOffset = mCurrentOffset;
+        requestTiles(firstTile - (delta > 0 ? TILES_AHEAD : 1),
+                lastTile + (delta < 0 ? TILES_AHEAD : 1));
+
+        // Compose the tiles
+        final int size = data.size() - 1;
+        final float cx = mGraphArea.left + (mGraphArea.width() / 2);
+        final long firstRow = firstTile * items - evicted;
+        final float left = cx + mCurrentOffset - (mBarWidth * (size - firstRow))
+                - (mBarWidth / 2);
+        final int tiles = mTileCache.draw(c, spec.mGeneration, firstTile, lastTile,
+                left, mViewArea.top, mBarWidth * items, null);
+        if (tiles == -1) {
+            return false;
         }
+        mBarsDrawCalls = tiles + drawHighlightedItem(c, snapshot, first, last);
+        return true;
+    }
 
-        if (needsInvalidate) {
-            ViewCompat.postInvalidateOnAnimation(this);
+    private TileSpec createTileSpec(DataSnapshot snapshot) {
+        // Tiles of the new generation reuse the bitmaps of the previous ones
+        final BarGeometry geometry = new BarGeometry();
+        setupBarGeometry(geometry, snapshot, mGraphArea.top - mViewArea.top);
+        final int items = TILE_ITEMS << geometry.mDenseLevel;
+        final int visibleTiles = (int) Math.ceil(
+                mGraphArea.width() / (mBarWidth * items)) + 1;
+        mTileCache.configure((int) Math.ceil(mBarWidth * items),
+                (int) Math.ceil(mViewArea.height()), visibleTiles + TILES_AHEAD * 2);
+        mTileGeneration++;
+
+        final TextPaint textPaint = new TextPaint(mTickLabelTextPaint);
+        textPaint.setColor(mTickLabelFgPaint.getColor());
+        final TextPaint layoutPaint = mTickLabelLayoutPaint != null
+                ? new TextPaint(mTickLabelLayoutPaint) : null;
+        if (layoutPaint != null) {
+            layoutPaint.setColor(mTickLabelFgPaint.getColor());
         }
+        return new TileSpec(mTileGeneration, snapshot, geometry, mShowFooter,
+                mFooterArea.top - mViewArea.top
+                        + (mFooterArea.height() / 2 - mTickLabelMinHeight / 2),
+                (int) mBarItemWidth, textPaint, layoutPaint);
     }
 
-    /** {@inheritDoc} */
-    @Override
+    private void requestTiles(long first, long last) {
+        mTileRequestFirst = first;
+        mTileRequestLast = last;
+        final Handler handler = mBackgroundHandler;
+        if (handler != null && mTilesScheduled.compareAndSet(false, true)) {
+            Message.obtain(handler, MSG_RENDER_TILES).sendToTarget();
+        }
+    }
+
+    private void performRenderTiles() {
+        mTilesScheduled.set(false);
+        final TileSpec spec = mTileSpec;
+        if (spec == null || spec.mLayoutPaint == null) {
+            return;
+        }
+
+        // Only the tiles with items
+        final TimelineData data = spec.mSnapshot.mData;
+        final long evicted = data.evicted();
+        final int items = spec.mTileItems;
+        final long first = Math.max(mTileRequestFirst, evicted / items);
+        final long last = Math.min(mTileRequestLast, (evicted + data.size() - 1) / items);
+        final TextPaint measurePaint = new TextPaint(spec.mLayoutPaint);
+        final Paint.FontMetrics fm = new Paint.FontMetrics();
+        boolean rendered = false;
+        for (long index = first; index <= last && spec == mTileSpec; index++) {
+            final TimelineTileCache.Tile tile = mTileCache.obtain(spec.mGeneration, index);
+            if (tile != null) {
+                mTileCanvas.setBitmap(tile.mBitmap);
+                renderTile(mTileCanvas, spec, index, measurePaint, fm);
+                mTileCanvas.setBitmap(null);
+                mTileCache.publish(tile);
+                rendered = true;
+            }
+        }
+        if (rendered) {
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    private void renderTile(Canvas c, TileSpec spec, long index, TextPaint measurePaint,
+            Paint.FontMetrics fm) {
+        final TimelineData data = spec.mSnapshot.mData;
+        final long firstRow = (index * spec.mTileItems) - data.evicted();
+        final int first = (int) Math.max(firstRow, 0);
+        final int last = (int) Math.min(firstRow + spec.mTileItems, data.size()) - 1;
+        if (first > last) {
+            return;
+        }
+
+        // Items are placed from the left of the tile
+        final BarGeometry geometry = mTileBarGeometry;
+        geometry.set(spec.mGeometry);
+        geometry.mAnchorX = geometry.mBarWidth / 2;
+        geometry.mAnchorItem = firstRow;
+        mTileBarRenderer.draw(c, spec.mSnapshot, geometry, first, last);
+        if (!spec.mShowFooter) {
+            return;
+        }
+
+        final TickLabelLayoutCache labels = mTickLabelLayouts;
+        for (int i = first; i <= last; i++) {
+            if (!data.isLoaded(i)) {
+                continue;
+            }
+            final float x = geometry.itemX(i);
+
+            // Draw the tick label (prepared labels are reused if they have the same width).
+            // The paint of a layout is changed when it's drawn, so the shared layouts are
+            // only drawn from the UI thread (tiles build their own)
+            final long timestamp = data.timestampAt(i);
+            final int tickFormat = data.tickFormatAt(i);
+            final int generation = labels.generation();
+            final boolean shared = labels.width() == spec.mLabelWidth;
+            TickLabelText label = shared ? labels.get(tickFormat, timestamp) : null;
+            if (label == null || label.isLayout()) {
+                label = createTickLabelText(tickFormat, timestamp,
+                        obtainBackgroundTickFormatter(), mTileDate, spec.mLayoutPaint,
+                        measurePaint, fm, spec.mLabelWidth);
+                if (shared && !label.isLayout()) {
+                    labels.put(generation, tickFormat, timestamp, label);
+                }
+            }
+            label.draw(c, x - (label.getWidth() / 2), spec.mLabelTop, spec.mTextPaint);
+        }
+    }
+
+    private void recordContentPicture(DataSnapshot snapshot, int first, int last) {
+        // Record the items on screen and a screen of items at both sides
+        final TimelineData data = snapshot.mData;
+        final int size = data.size() - 1;
+        final int margin = mMaxBarItemsInScreen;
+        final int from = Math.max(0, first - margin);
+        final int to = Math.min(size, last + margin);
+        final float cx = mGraphArea.left + (mGraphArea.width() / 2);
+        final float left = cx + mCurrentOffset - (mBarWidth * (size - from))
+                - (mBarItemWidth / 2);
+        final float right = cx + mCurrentOffset - (mBarWidth * (size - to))
+                + (mBarItemWidth / 2);
+
+        if (mContentPicture == null) {
+            mContentPicture = new Picture();
+        }
+        final Canvas c = mContentPicture.beginRecording(
+                (int) Math.ceil(right - left), (int) Math.ceil(mViewArea.bottom));
+        c.translate(-left, 0);
+        drawBarItems(c, snapshot, from, to, false);
+        if (mShowFooter) {
+            drawTickLabels(c, data, from, to);
+        }
+        mContentPicture.endRecording();
+
+        mContentPictureValid = true;
+        mContentSnapshot = snapshot;
+        mContentModCount = data.modCount();
+        mContentGraphMode = mGraphMode;
+        mContentFirstItem = from == 0 ? Integer.MIN_VALUE : from;
+        mContentLastItem = to == size ? Integer.MAX_VALUE : to;
+        mContentOffset = mCurrentOffset;
+        mContentLeft = left;
+
+        // Labels blitted from the atlas must remain in it
+        mContentAtlas = mTickLabelAtlas;
+        mContentAtlasEvictions = mContentAtlas != null ? mContentAtlas.evictions() : 0;
+    }
+
+    private int computeHighlightedItem(TimelineData data, int first, int last) {
+        if (mLastTimestamp != mCurrentTimestamp && mState == STATE_SCROLLING) {
+            return -1;
+        }
+        final int size = data.size() - 1;
+        final int item = size - Math.round(mCurrentOffset / mBarWidth);
+        if (item < first || item > last || !data.isLoaded(item)) {
+            return -1;
+        }
+        return item;
+    }
+
+    /**
+     * Returns the position of the absolute item 0 relative to the current offset. Items
+     * with the same absolute index are drawn at the same place while the anchor is the same.
+     */
+    private double computeAnchor(TimelineData data) {
+        return mCurrentOffset - ((double) mBarWidth * (data.size() - 1 + data.evicted()));
+    }
+
+    /**
+     * Invalidates only the items changed by appended data: the last item drawn (it could
+     * be updated in place) and the new ones. Everything is invalidated if the items
+     * already drawn moved or changed their scale.
+     */
+    private void invalidateChangedItems() {
+        final DataSnapshot drawn = mDrawnSnapshot;
+        final DataSnapshot snapshot = mSnapshot;
+        if (drawn == null || drawn == snapshot) {
+            ViewCompat.postInvalidateOnAnimation(this);
+            return;
+        }
+        final TimelineData previous = drawn.mData;
+        final TimelineData data = snapshot.mData;
+        final boolean sameItems = previous.size() > 0
+                && data.size() >= previous.size()
+                && previous.evicted() == data.evicted()
+                && drawn.mSeriesBgPaint == snapshot.mSeriesBgPaint
+                && drawn.mPyramid == null && snapshot.mPyramid == null && mDenseLevel == 0
+                && mDrawnGraphMode == mGraphMode && mCurrentZoom == 1.f
+                && drawn.mMaxValues.get(mGraphMode) == snapshot.mMaxValues.get(mGraphMode)
+                && Math.abs(computeAnchor(data) - mDrawnAnchor) < 0.5d;
+        if (!sameItems) {
+            ViewCompat.postInvalidateOnAnimation(this);
+            return;
+        }
+        invalidateItems(data, previous.size() - 1, data.size() - 1);
+    }
+
+    private void invalidateHighlightedItem() {
+        final TimelineData data = mSnapshot.mData;
+        final int item = data.size() - 1 - Math.round(mCurrentOffset / mBarWidth);
+        if (item >= 0 && item < data.size()) {
+            invalidateItems(data, item, item);
+        }
+    }
+
+    /**
+     * Invalidates the bars and the footer cells of the items passed as argument.
+     */
+    private void invalidateItems(TimelineData data, int first, int last) {
+        final int size = data.size() - 1;
+        final float cx = mGraphArea.left + (mGraphArea.width() / 2);
+        final float halfItemBarWidth = mBarItemWidth / 2;
+        final float left = cx + mCurrentOffset - (mBarWidth * (size - first)) - halfItemBarWidth;
+        final float right = cx + mCurrentOffset - (mBarWidth * (size - last)) + halfItemBarWidth;
+        if (right < mViewArea.left || left > mViewArea.right) {
+            // Not visible
+            return;
+        }
+        final float bottom = mShowFooter ? mFooterArea.bottom : mGraphArea.bottom;
+        ViewCompat.postInvalidateOnAnimation(this,
+                (int) Math.floor(Math.max(left, mViewArea.left)),
+                (int) Math.floor(mGraphArea.top),
+                (int) Math.ceil(Math.min(right, mViewArea.right)),
+                (int) Math.ceil(bottom));
+    }
+
+    private void invalidateContentCaches() {
+        mContentPictureValid = false;
+        mTileSpecValid = false;
+    }
+
+    private void drawBarItems(Canvas c, DataSnapshot snapshot, int first, int last,
+            boolean highlight) {
+        // Apply zoom animation
+        final float zoom = mCurrentZoom;
+        final float cx = mGraphArea.left + (mGraphArea.width() / 2);
+        int restoreCount = 0;
+        if (zoom != 1.f) {
+            restoreCount = c.save();
+            c.scale(zoom, zoom, cx, mGraphArea.bottom);
+        }
+
+        if (mDenseLevel > 0 && snapshot.mPyramid == null) {
+            // Draw every bar until the aggregations are available
+            requestPyramid();
+        }
+
+        // Items are placed relative to the last one
+        final BarGeometry geometry = mBarGeometry;
+        setupBarGeometry(geometry, snapshot, mGraphArea.top);
+        geometry.mAnchorX = cx + mCurrentOffset;
+        geometry.mAnchorItem = snapshot.mData.size() - 1;
+        geometry.mHighlight = highlight
+                && (mLastTimestamp == mCurrentTimestamp || (mState != STATE_SCROLLING));
+        geometry.mHighlightX = cx;
+        mBarsDrawCalls = mBarRenderer.draw(c, snapshot, geometry, first, last);
+
+        // Restore from zoom
+        if (zoom != 1.f) {
+            c.restoreToCount(restoreCount);
+        }
+    }
+
+    private void setupBarGeometry(BarGeometry geometry, DataSnapshot snapshot, float top) {
+        geometry.mGraphMode = mGraphMode;
+        geometry.mMaxValue = snapshot.mMaxValues.get(mGraphMode);
+        geometry.mDenseLevel = mDenseLevel;
+        geometry.mBarWidth = mBarWidth;
+        geometry.mBarItemWidth = mBarItemWidth;
+        geometry.mTop = top;
+        geometry.mHeight = mGraphArea.height();
+    }
+
+    private void drawTickLabels(Canvas c, TimelineData data, int first, int last) {
+        final float alphaVariation = MAX_ZOOM_OUT - MIN_ZOOM_OUT;
+        final float alpha = MAX_ZOOM_OUT - mCurrentZoom;
+        final TextPaint paint = mTickLabelLayoutPaint;
+        paint.setColor(mTickLabelFgPaint.getColor());
+        paint.setAlpha((int) ((alpha * 255) / alphaVariation));
+        final TextPaint textPaint = mTickLabelTextPaint;
+        textPaint.setColor(paint.getColor());
+
+        // Layouts are built for the current width of the labels
+        final TickLabelLayoutCache cache = mTickLabelLayouts;
+        if (cache.width() != (int) mBarItemWidth
+                || cache.capacity() < computeTickLabelLayoutsCapacity()) {
+            resetTickLabelLayouts();
+        }
+        final int generation = cache.generation();
+
+        if (mTickLabelsAtlasEnabled) {
+            drawTickLabelsFromAtlas(c, data, first, last, generation);
+            return;
+        }
+
+        final int size = data.size() - 1;
+        final float cx = mGraphArea.left + (mGraphArea.width() / 2);
+        for (int i = last; i >= first; i--) {
+            if (!data.isLoaded(i)) {
+                // The item isn't loaded yet
+                continue;
+            }
+
+            // Obtain the prepared label
+            final TickLabelText label = obtainTickLabelText(data, i, generation);
+
+            // Calculate the x position and draw the label
+            final float x = cx + mCurrentOffset - (mBarWidth * (size - i))
+                    - (label.getWidth() / 2);
+            mTickLabelsDrawCalls += label.draw(c, x, mFooterArea.top
+                    + (mFooterArea.height() / 2 - mTickLabelMinHeight / 2), textPaint);
+        }
+    }
+
+    private void drawTickLabelsFromAtlas(Canvas c, TimelineData data, int first, int last,
+            int generation) {
+        // The labels are rasterized at full alpha. The alpha is applied when blitting them
+        final TextPaint paint = mTickLabelLayoutPaint;
+        mTickLabelAtlasPaint.setAlpha(paint.getAlpha());
+        paint.setAlpha(255);
+        final TextPaint textPaint = mTickLabelTextPaint;
+        textPaint.setAlpha(255);
+
+        final int cellWidth = mTickLabelLayouts.width();
+        final int cellHeight = (int) Math.ceil(mFooterBarHeight);
+        if (cellWidth <= 0 || cellHeight <= 0) {
+            return;
+        }
+        // Cells must hold all the labels recorded in the display list of the content
+        final int capacity = Math.max(MIN_TICK_LABEL_ATLAS_CELLS, mMaxBarItemsInScreen * 4);
+        final int color = paint.getColor();
+        TickLabelAtlas atlas = mTickLabelAtlas;
+        if (atlas == null || !atlas.matches(cellWidth, cellHeight, capacity, color)) {
+            releaseTickLabelAtlas();
+            atlas = new TickLabelAtlas(cellWidth, cellHeight, capacity, color);
+            mTickLabelAtlas = atlas;
+        }
+
+        final int size = data.size() - 1;
+        final float cx = mGraphArea.left + (mGraphArea.width() / 2);
+        final float top = mFooterBarHeight / 2 - mTickLabelMinHeight / 2;
+        for (int i = last; i >= first; i--) {
+            if (!data.isLoaded(i)) {
+                // The item isn't loaded yet
+                continue;
+            }
+
+            // Rasterize the label if it isn't in the atlas yet
+            final long timestamp = data.timestampAt(i);
+            final int tickFormat = data.tickFormatAt(i);
+            int cell = atlas.find(tickFormat, timestamp);
+            if (cell == -1) {
+                cell = atlas.add(tickFormat, timestamp,
+                        obtainTickLabelText(data, i, generation), top, textPaint);
+            }
+
+            // Calculate the x position and blit the cell
+            final float x = cx + mCurrentOffset - (mBarWidth * (size - i)) - (cellWidth / 2);
+            atlas.computeCell(cell, mTickLabelAtlasSrc);
+            mTickLabelAtlasDst.set(x, mFooterArea.top, x + cellWidth, mFooterArea.top + cellHeight);
+            c.drawBitmap(atlas.bitmap(), mTickLabelAtlasSrc, mTickLabelAtlasDst,
+                    mTickLabelAtlasPaint);
+            mTickLabelsDrawCalls++;
+        }
+    }
+
+    private TickLabelText obtainTickLabelText(TimelineData data, int row, int generation) {
+        final TickLabelLayoutCache cache = mTickLabelLayouts;
+        final long timestamp = data.timestampAt(row);
+        final int tickFormat = data.tickFormatAt(row);
+        TickLabelText label = cache.get(tickFormat, timestamp);
+        if (label == null) {
+            // Not prepared yet. Just build it now
+            label = createTickLabelText(tickFormat, timestamp, mTickFormatter, mTickDate,
+                    mTickLabelLayoutPaint, mTickLabelTextPaint, mTickLabelFontMetrics,
+                    cache.width());
+            cache.put(generation, tickFormat, timestamp, label);
+        }
+        return label;
+    }
+
+    /**
+     * Detaches the atlas of the labels. The bitmap isn't recycled until the frames drawn
+     * with it (or the recorded content) can't be displayed anymore.
+     */
+    private void releaseTickLabelAtlas() {
+        if (mTickLabelAtlas != null) {
+            invalidateContentCaches();
+            mRetiredTickLabelAtlases.add(mTickLabelAtlas);
+            mTickLabelAtlas = null;
+        }
+    }
+
+    /**
+     * Recycles the atlases retired before the previous frame (they aren't used by any
+     * displayed frame), or all of them when nothing will be displayed anymore.
+     */
+    private void recycleRetiredTickLabelAtlases(boolean all) {
+        for (int i = mRecyclableTickLabelAtlases.size() - 1; i >= 0; i--) {
+            mRecyclableTickLabelAtlases.get(i).recycle();
+        }
+        mRecyclableTickLabelAtlases.clear();
+        for (int i = mRetiredTickLabelAtlases.size() - 1; i >= 0; i--) {
+            if (all) {
+                mRetiredTickLabelAtlases.get(i).recycle();
+            } else {
+                mRecyclableTickLabelAtlases.add(mRetiredTickLabelAtlases.get(i));
+            }
+        }
+        mRetiredTickLabelAtlases.clear();
+    }
+
+    private void updateTickLabelsLocale() {
+        // Labels are formatted with the default locale
+        if (!Locale.getDefault().equals(mTickLabelsLocale)) {
+            setupTickLabels();
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    /**
+     * Prepares a label line by line, measuring the lines with the measure paint passed as
+     * argument. Falls back to a layout built with the layout paint if a line has mixed
+     * text sizes or must be wrapped.
+     */
+    private TickLabelText createTickLabelText(int tickFormat, long timestamp,
+            SimpleDateFormat[] formatter, Date date, TextPaint layoutPaint,
+            TextPaint measurePaint, Paint.FontMetrics fm, int width) {
+        date.setTime(timestamp);
+        final String text = formatter[tickFormat].format(date)
+                .replace(".", "")
+                .toUpperCase(Locale.getDefault());
+        final char[] chars = text.toCharArray();
+        final int length = chars.length;
+
+        // Count the lines
+        int lines = 1;
+        for (int i = 0; i < length; i++) {
+            if (chars[i] == '\n') {
+                lines++;
+            }
+        }
+
+        final int spanEnd = tickSpanEnd(tickFormat, length);
+        final float spanSize = tickSpanSize(tickFormat);
+        final float textSize = layoutPaint.getTextSize();
+        final int[] starts = new int[lines];
+        final int[] ends = new int[lines];
+        final float[] sizes = new float[lines];
+        final float[] lefts = new float[lines];
+        final float[] baselines = new float[lines];
+        float top = 0;
+        int start = 0;
+        for (int line = 0; line < lines; line++) {
+            int end = start;
+            while (end < length && chars[end] != '\n') {
+                end++;
+            }
+            if (start < spanEnd && end > spanEnd) {
+                // The span doesn't cover the whole line
+                return createTickLabelLayout(tickFormat, text, layoutPaint, width);
+            }
+
+            // Measure the line as a centered layout does
+            final float size = start < spanEnd ? spanSize : textSize;
+            measurePaint.setTextSize(size);
+            final float lineWidth = measurePaint.measureText(chars, start, end - start);
+            if (lineWidth > width) {
+                return createTickLabelLayout(tickFormat, text, layoutPaint, width);
+            }
+            measurePaint.getFontMetrics(fm);
+            starts[line] = start;
+            ends[line] = end;
+            sizes[line] = size;
+            lefts[line] = (width - lineWidth) / 2;
+            baselines[line] = top - fm.ascent;
+            top += fm.descent - fm.ascent;
+            start = end + 1;
+        }
+        return new TickLabelText(chars, starts, ends, sizes, lefts, baselines, width);
+    }
+
+    private TickLabelText createTickLabelLayout(int tickFormat, String text,
+            TextPaint paint, int width) {
+        final SpannableString spannable = new SpannableString(text);
+        setupTickSpans(tickFormat, spannable);
+        // Every layout has its own paint, colored when the label is drawn
+        return new TickLabelText(new StaticLayout(spannable, new TextPaint(paint), width,
+                Layout.Alignment.ALIGN_CENTER, 1.0f, 1.0f, false));
+    }
+
+    private int computeTickLabelLayoutsCapacity() {
+        // The labels on screen and the ones at both sides of the viewport
+        return Math.max(MIN_TICK_LABEL_LAYOUTS, mMaxBarItemsInScreen * 4);
+    }
+
+    private void resetTickLabelLayouts() {
+        mTickLabelLayouts.reset((int) mBarItemWidth, computeTickLabelLayoutsCapacity());
+    }
+
+    private void requestTickLabels(int first, int last) {
+        mTickLabelsFirstRow = first;
+        mTickLabelsLastRow = last;
+        final Handler handler = mBackgroundHandler;
+        if (handler != null && mTickLabelsScheduled.compareAndSet(false, true)) {
+            Message.obtain(handler, MSG_PREPARE_TICK_LABELS).sendToTarget();
+        }
+    }
+
+    private void performPrepareTickLabels() {
+        mTickLabelsScheduled.set(false);
+
+        // Layouts built for a previous generation are discarded by the cache
+        final TickLabelLayoutCache cache = mTickLabelLayouts;
+        final int generation = cache.generation();
+        final int width = cache.width();
+        final TextPaint layoutPaint = mTickLabelLayoutPaint;
+        if (width <= 0 || layoutPaint == null) {
+            return;
+        }
+        // The UI thread changes the alpha of its paint while drawing, so use a copy
+        final TextPaint paint = new TextPaint(layoutPaint);
+        final TextPaint measurePaint = new TextPaint(layoutPaint);
+        final Paint.FontMetrics fm = new Paint.FontMetrics();
+        final SimpleDateFormat[] formatter = obtainBackgroundTickFormatter();
+        final Date date = new Date();
+
+        // Prepare the labels on screen and the ones at both sides of the viewport
+        final TimelineData data = mSnapshot.mData;
+        final int first = mTickLabelsFirstRow;
+        final int last = mTickLabelsLastRow;
+        final int margin = last - first + 1;
+        final int end = Math.min(data.size() - 1, last + margin);
+        for (int i = Math.max(0, first - margin); i <= end; i++) {
+            if (!data.isLoaded(i)) {
+                continue;
+            }
+            final long timestamp = data.timestampAt(i);
+            final int tickFormat = data.tickFormatAt(i);
+            if (!cache.contains(tickFormat, timestamp)) {
+                cache.put(generation, tickFormat, timestamp, createTickLabelText(tickFormat,
+                        timestamp, formatter, date, paint, measurePaint, fm, width));
+            }
+        }
+    }
+
+    private void drawEdgeEffects(Canvas c) {
+        boolean needsInvalidate = false;
+
+        if (mEdgeEffectLeft != null && !mEdgeEffectLeft.isFinished()) {
+            final int restoreCount = c.save();
+            c.rotate(270);
+            c.translate(-mGraphArea.height() - mGraphArea.top, mGraphArea.left);
+            mEdgeEffectLeft.setSize((int) mGraphArea.height(), (int) mGraphArea.width());
+            needsInvalidate = mEdgeEffectLeft.draw(c);
+            c.restoreToCount(restoreCount);
+        }
+
+        if (mEdgeEffectRight != null && !mEdgeEffectRight.isFinished()) {
+            final int restoreCount = c.save();
+            c.rotate(90);
+            c.translate(mGraphArea.top,
+                    -getWidth() + (getWidth() - mGraphArea.right));
+            mEdgeEffectRight.setSize((int) mGraphArea.height(), (int) mGraphArea.width());
+            needsInvalidate |= mEdgeEffectRight.draw(c);
+            c.restoreToCount(restoreCount);
+        }
+
+        if (needsInvalidate) {
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
         mViewArea.set(
@@ -1701,7 +3502,7 @@ public class TimelineChartView extends View {
         computeBoundAreas();
     }
 
-    private void computeItemsOnScreen(LongSparseArray<Pair<double[], int[]>> data) {
+    private void computeItemsOnScreen(TimelineData data) {
         if (mLastOffset == mCurrentOffset) {
             return;
         }
@@ -1723,6 +3524,16 @@ public class TimelineChartView extends View {
         mItemsOnScreen[0] = first;
         mItemsOnScreen[1] = last;
         mLastOffset = mCurrentOffset;
+
+        // Prepare the labels of the items around the viewport
+        if (mShowFooter) {
+            requestTickLabels(first, last);
+        }
+
+        // Ensure the items around the viewport are loaded
+        if (data.isWindowed()) {
+            requestDataWindowIfNeeded(data, first, last);
+        }
     }
 
     private void computeBoundAreas() {
@@ -1760,8 +3571,16 @@ public class TimelineChartView extends View {
     }
 
     private void computeMaxBarItemsInScreen() {
+        invalidateContentCaches();
         ensureBarWidth();
         mMaxBarItemsInScreen = (int) Math.ceil(mGraphArea.width() / mBarWidth) + 2;
+
+        // Aggregate the bars in buckets of 2^level items if they are too narrow
+        int level = 0;
+        while (mBarWidth > 0 && mBarWidth * (1 << level) < MIN_DENSE_BAR_WIDTH) {
+            level++;
+        }
+        mDenseLevel = level;
     }
 
     private void computeCurrentPositionIndicatorDimensions() {
@@ -1769,19 +3588,23 @@ public class TimelineChartView extends View {
         mCurrentPositionIndicatorHeight = mBarItemWidth / 4f;
     }
 
-    private synchronized void setupBackgroundHandler() {
-        if (mBackgroundHandler == null) {
-            // Create a background thread
-            mBackgroundHandlerThread = new HandlerThread(TAG + "BackgroundThread");
-            mBackgroundHandlerThread.start();
-            mBackgroundHandler = new Handler(mBackgroundHandlerThread.getLooper(), mMessenger);
+    private void setupBackgroundHandler() {
+        synchronized (mLock) {
+            if (mBackgroundHandler == null) {
+                // Create a background thread
+                mBackgroundHandlerThread = new HandlerThread(TAG + "BackgroundThread");
+                mBackgroundHandlerThread.start();
+                mBackgroundHandler = new Handler(mBackgroundHandlerThread.getLooper(), mMessenger);
+                mPostProcessExecutor = createPostProcessExecutor();
+            }
         }
     }
 
     @SuppressWarnings("unchecked")
     private void setupTickLabels() {
         synchronized (mLock) {
-            mTickCalendar = Calendar.getInstance(TimeZone.getDefault(), Locale.getDefault());
+            mTickLabelsLocale = Locale.getDefault();
+            mTickLabelClassifier = new TickLabelClassifier(TimeZone.getDefault());
 
             mTextSizeFactor = mFooterBarHeight / mDefFooterBarHeight;
             mTickLabelFgPaint.setTextSize((int) (mSize8 * mTextSizeFactor));
@@ -1790,10 +3613,9 @@ public class TimelineChartView extends View {
 
             int count = mTickFormats.length;
             mTickTextLayouts = new SparseArray[count];
-            mTickFormatter = new SimpleDateFormat[count];
+            mTickFormatter = createTickFormatter();
             mTickTextSpannables = new SparseArray[count];
             for (int i = 0; i < count; i++) {
-                mTickFormatter[i] = new SimpleDateFormat(mTickFormats[i], Locale.getDefault());
                 mTickDate.setTime(Long.valueOf(mTickLabels[i]));
                 final String text = mTickFormatter[i].format(mTickDate)
                         .replace(".", "")
@@ -1812,22 +3634,68 @@ public class TimelineChartView extends View {
                 mTickLabelMinHeight = Math.max(
                         mTickLabelMinHeight, mTickTextLayouts[i].get(text.length()).getHeight());
             }
+
+            // Discard the prepared labels
+            invalidateContentCaches();
+            mBackgroundTickFormatter = null;
+            mTickLabelLayoutPaint = new TextPaint(mTickLabelFgPaint);
+            mTickLabelTextPaint = new TextPaint(mTickLabelFgPaint);
+            resetTickLabelLayouts();
+            releaseTickLabelAtlas();
+        }
+    }
+
+    private SimpleDateFormat[] obtainBackgroundTickFormatter() {
+        SimpleDateFormat[] formatter = mBackgroundTickFormatter;
+        if (formatter == null) {
+            formatter = createTickFormatter();
+            mBackgroundTickFormatter = formatter;
         }
+        return formatter;
+    }
+
+    private SimpleDateFormat[] createTickFormatter() {
+        final int count = mTickFormats.length;
+        final SimpleDateFormat[] formatter = new SimpleDateFormat[count];
+        for (int i = 0; i < count; i++) {
+            formatter[i] = new SimpleDateFormat(mTickFormats[i], Locale.getDefault());
+        }
+        return formatter;
     }
 
     private DynamicSpannableString createSpannableTick(int tickFormat, CharSequence text) {
         DynamicSpannableString spannable = new DynamicSpannableString(text);
         mTickTextSpannables[tickFormat].put(text.length(), spannable);
-        if (tickFormat == (mTickFormats.length - 1)) {
-            spannable.setSpan(new AbsoluteSizeSpan(
-                            (int) (mSize20 * mTextSizeFactor)), 0, 2,
+        setupTickSpans(tickFormat, spannable);
+        return spannable;
+    }
+
+    private void setupTickSpans(int tickFormat, Spannable spannable) {
+        final int end = tickSpanEnd(tickFormat, spannable.length());
+        if (end > 0) {
+            spannable.setSpan(new AbsoluteSizeSpan((int) tickSpanSize(tickFormat)), 0, end,
                     Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    /**
+     * Returns the end of the text (from its start) with a different size, or 0 if the
+     * whole text uses the default size.
+     */
+    private int tickSpanEnd(int tickFormat, int length) {
+        if (tickFormat == (mTickFormats.length - 1)) {
+            return Math.min(2, length);
         } else if (tickFormat == 1) {
-            spannable.setSpan(new AbsoluteSizeSpan(
-                            (int) (mSize12 * mTextSizeFactor)), 0, text.length(),
-                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            return length;
         }
-        return spannable;
+        return 0;
+    }
+
+    private float tickSpanSize(int tickFormat) {
+        if (tickFormat == (mTickFormats.length - 1)) {
+            return (int) (mSize20 * mTextSizeFactor);
+        }
+        return (int) (mSize12 * mTextSizeFactor);
     }
 
     private void setupEdgeEffects() {
@@ -1916,12 +3784,48 @@ public class TimelineChartView extends View {
 
     private void reloadCursorData(boolean animate) {
         int arg1 = mAnimateCursorTransition && animate ? 1 : 0;
-        Message.obtain(mBackgroundHandler, MSG_COMPUTE_DATA, arg1, 1).sendToTarget();
+        Message.obtain(mBackgroundHandler, MSG_COMPUTE_DATA, arg1, 1,
+                mDataGeneration.get()).sendToTarget();
+    }
+
+    private void scheduleCursorDataReload() {
+        final Handler handler = mBackgroundHandler;
+        if (handler == null) {
+            return;
+        }
+        if (!mReloadScheduled.compareAndSet(false, true)) {
+            // Already pending. The reload will read this change too
+            mCoalescedNotifications.incrementAndGet();
+            return;
+        }
+        final long delay = Math.max(0,
+                mLastReloadTime + mMinReloadInterval - SystemClock.uptimeMillis());
+        handler.sendMessageDelayed(Message.obtain(handler, MSG_RELOAD_DATA), delay);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void performReloadData() {
+        // Changes notified from here are read by the next reload
+        mReloadScheduled.set(false);
+        mLastReloadTime = SystemClock.uptimeMillis();
+        if (mRequeryPending) {
+            mRequeryPending = false;
+            mObserverStatus = 2;
+            synchronized (mCursorLock) {
+                if (mCursor != null && !mCursor.isClosed()) {
+                    mCursor.requery();
+                }
+            }
+            mObserverStatus = 0;
+        }
+        performComputeData(false, true, mDataGeneration.get());
     }
 
-    private void performComputeData(boolean animate, boolean notify) {
-        // Process the data
-        processData();
+    private void performComputeData(boolean animate, boolean notify, int generation) {
+        // Process the data (unless a newer generation of the data was requested)
+        if (generation != mDataGeneration.get() || !processData(generation)) {
+            return;
+        }
 
         if (animate) {
             // Run in an animation
@@ -1948,7 +3852,293 @@ public class TimelineChartView extends View {
         ViewCompat.postInvalidateOnAnimation(TimelineChartView.this);
     }
 
-    private void processData() {
+    private void performAppendData() {
+        mAppendDataScheduled.set(false);
+        if (processPendingPoints()) {
+            // Swap temporary refs (don't stop the user interaction)
+            swapRefs();
+
+            // Update the view and notify
+            Message.obtain(mUiHandler, MSG_UPDATE_COMPUTED_DATA, 0, 1).sendToTarget();
+        }
+    }
+
+    private boolean processPendingPoints() {
+        PendingPoints points = mPendingPoints.poll();
+        if (points == null) {
+            return false;
+        }
+
+        // Share the storage of the current data, so only the new items need to be appended
+        final TimelineAggregator aggregator = mAggregator;
+        final DataSnapshot snapshot = latestSnapshot();
+        TimelineData data;
+        boolean hasDayFormat = false;
+        MaxValues max = new MaxValues();
+        if (snapshot.mSeries == points.mSeries && !snapshot.mData.isWindowed()
+                && mDataAggregator == aggregator) {
+            data = snapshot.mData.share();
+            retainPublishedData(data);
+            hasDayFormat = snapshot.mTickHasDayFormat;
+            max = new MaxValues(snapshot.mMaxValues);
+        } else {
+            data = new TimelineData(points.mSeries, 0);
+            if (aggregator != null) {
+                aggregator.reset();
+            }
+        }
+
+        int lastTickLabelFormat = -1;
+        double[] seriesData = new double[points.mSeries];
+        while (points != null) {
+            final int series = points.mSeries;
+            if (series != data.series()) {
+                // The number of series changed. Discard the current data
+                data = new TimelineData(series, 0);
+                hasDayFormat = false;
+                max = new MaxValues();
+                seriesData = new double[series];
+                if (aggregator != null) {
+                    aggregator.reset();
+                }
+            }
+
+            final int count = points.mTimestamps.length;
+            data.ensureFreeCapacity(count + LIVE_DATA_FREE_CAPACITY);
+            for (int n = 0; n < count; n++) {
+                final long timestamp = points.mTimestamps[n];
+                if (aggregator != null) {
+                    // Aggregate the item in its bucket
+                    System.arraycopy(points.mValues, n * series, seriesData, 0, series);
+                    final int last = data.size() - 1;
+                    final int row = aggregator.add(data, timestamp, seriesData);
+                    if (row == -1) {
+                        continue;
+                    }
+                    if (row != last) {
+                        // Determine the best tick vertical alignment of the new bucket
+                        final int tickLabelFormat = getTickLabelFormat(data.timestampAt(row));
+                        data.setTickFormat(row, tickLabelFormat);
+                        if (tickLabelFormat == TICK_LABEL_DAY_FORMAT
+                                || (lastTickLabelFormat != -1
+                                        && lastTickLabelFormat != tickLabelFormat)) {
+                            hasDayFormat = true;
+                        }
+                        lastTickLabelFormat = tickLabelFormat;
+                    }
+                    max.add(data, row);
+                    continue;
+                }
+                if (data.size() > 0 && timestamp <= data.lastTimestamp()) {
+                    continue;
+                }
+
+                // Determine the best tick vertical alignment
+                final int tickLabelFormat = getTickLabelFormat(timestamp);
+                if (tickLabelFormat == TICK_LABEL_DAY_FORMAT ||
+                        (lastTickLabelFormat != -1 && lastTickLabelFormat != tickLabelFormat)) {
+                    hasDayFormat = true;
+                }
+                lastTickLabelFormat = tickLabelFormat;
+
+                final int row = data.append(timestamp);
+                data.setTickFormat(row, tickLabelFormat);
+                for (int i = 0; i < series; i++) {
+                    data.setValue(row, i, points.mValues[n * series + i]);
+                }
+                max.add(data, row);
+            }
+            points = mPendingPoints.poll();
+        }
+
+        // Evict the items out of the retention limits
+        applyRetention(data, max);
+        mDataAggregator = aggregator;
+
+        // Prepare the snapshot to swap (palette is resolved when swapped)
+        final float maxOffset = mBarWidth * (data.size() - 1);
+        final DataSnapshot newSnapshot = new DataSnapshot(data, max, maxOffset,
+                hasDayFormat, null, null, null, computePyramid(snapshot.mPyramid, data));
+        synchronized (mLock) {
+            mPendingSnapshot = newSnapshot;
+        }
+        return true;
+    }
+
+    private void processDataWindow(int series, int count) {
+        // The cached pages belong to the previous data
+        mDataPages.evictAll();
+
+        // Load the records around the row at the current position
+        final TimelineData current = latestSnapshot().mData;
+        int row = count - 1;
+        if (current.size() > 0) {
+            row = current.size() - 1 - Math.round(mCurrentOffset / mBarWidth);
+            row = Math.max(0, Math.min(row, count - 1));
+        }
+        final DataSnapshot snapshot = loadDataWindow(series, count, row);
+        synchronized (mLock) {
+            mPendingSnapshot = snapshot;
+        }
+    }
+
+    private DataSnapshot loadDataWindow(int series, int count, int row) {
+        // Load enough pages to fill the screen at both sides of the requested row
+        final int pageSize = TimelineDataPages.PAGE_SIZE;
+        final int radius = 1 + (mMaxBarItemsInScreen / pageSize);
+        final int firstPage = Math.max(0, (row / pageSize) - radius);
+        final int lastPage = Math.min((count - 1) / pageSize, (row / pageSize) + radius);
+        final int start = firstPage * pageSize;
+        final int end = Math.min(count, (lastPage + 1) * pageSize);
+
+        final TimelineData data = new TimelineData(series, end - start);
+        boolean hasDayFormat = false;
+        MaxValues max = new MaxValues();
+        int lastTickLabelFormat = -1;
+        CursorBlockReader reader = null;
+        for (int i = firstPage; i <= lastPage; i++) {
+            TimelineData page = mDataPages.get(i);
+            if (page == null) {
+                if (reader == null) {
+                    reader = new CursorBlockReader(mCursor, series, count);
+                }
+                page = readDataPage(reader, series, i * pageSize,
+                        Math.min(count, (i + 1) * pageSize));
+                mDataPages.put(i, page);
+            }
+
+            final int size = page.size();
+            for (int j = 0; j < size; j++) {
+                final long timestamp = page.timestampAt(j);
+
+                // Determine the best tick vertical alignment
+                final int tickLabelFormat = page.tickFormatAt(j);
+                if (tickLabelFormat == TICK_LABEL_DAY_FORMAT
+                        || (lastTickLabelFormat != -1 && lastTickLabelFormat != tickLabelFormat)) {
+                    hasDayFormat = true;
+                }
+                lastTickLabelFormat = tickLabelFormat;
+
+                final int r = data.append(timestamp);
+                data.copyRow(r, page, j);
+                max.add(data, r);
+            }
+        }
+        data.setWindow(start, count);
+
+        final float maxOffset = mBarWidth * (data.size() - 1);
+        return new DataSnapshot(data, max, maxOffset, hasDayFormat,
+                null, null, null, computePyramid(null, data));
+    }
+
+    private TimelineData readDataPage(CursorBlockReader reader, int series, int start, int end) {
+        final TimelineData page = new TimelineData(series, end - start);
+        int position = start;
+        int read;
+        while (position < end && (read = reader.read(position)) > 0) {
+            read = Math.min(read, end - position);
+            for (int n = 0; n < read; n++) {
+                final long timestamp = reader.timestampAt(n);
+                final int row = page.append(timestamp);
+                page.setTickFormat(row, getTickLabelFormat(timestamp));
+                for (int i = 0; i < series; i++) {
+                    page.setValue(row, i, reader.valueAt(n, i));
+                }
+            }
+            position += read;
+        }
+        return page;
+    }
+
+    private void requestDataWindowIfNeeded(TimelineData data, int first, int last) {
+        // Request the records around the viewport before reaching the edge of the window
+        final int margin = TimelineDataPages.PAGE_SIZE / 2;
+        if ((data.windowStart() > 0 && first - data.windowStart() < margin)
+                || (data.windowEnd() < data.size() && data.windowEnd() - 1 - last < margin)) {
+            mRequestedWindowRow = (first + last) / 2;
+            if (mDataWindowScheduled.compareAndSet(false, true)) {
+                Message.obtain(mBackgroundHandler, MSG_LOAD_DATA_WINDOW).sendToTarget();
+            }
+        }
+    }
+
+    private void performLoadDataWindow() {
+        mDataWindowScheduled.set(false);
+
+        DataSnapshot snapshot;
+        synchronized (mCursorLock) {
+            if (mOptimizationFlag != WINDOWED_OPTIMIZATION || mCursor == null
+                    || mCursor.isClosed()) {
+                return;
+            }
+
+            // Don't load anything if a new data is pending to be swapped
+            final DataSnapshot current = latestSnapshot();
+            if (current != mSnapshot || !current.mData.isWindowed()) {
+                return;
+            }
+            snapshot = loadDataWindow(current.mSeries, current.mData.size(),
+                    mRequestedWindowRow);
+        }
+
+        // Publish the window
+        synchronized (mLock) {
+            if (mSnapshot.mData.size() != snapshot.mData.size()) {
+                return;
+            }
+            snapshot = snapshot.withPalette(mSnapshot);
+            mPendingSnapshot = snapshot;
+            mSnapshot = snapshot;
+        }
+        Message.obtain(mUiHandler, MSG_UPDATE_DATA_WINDOW).sendToTarget();
+    }
+
+    private TimelineDataPyramid computePyramid(TimelineDataPyramid previous, TimelineData data) {
+        // Only needed when bars are dense
+        if (mDenseLevel == 0) {
+            return null;
+        }
+        return TimelineDataPyramid.update(previous, data);
+    }
+
+    private void requestPyramid() {
+        final Handler handler = mBackgroundHandler;
+        if (handler != null && mPyramidScheduled.compareAndSet(false, true)) {
+            Message.obtain(handler, MSG_COMPUTE_PYRAMID).sendToTarget();
+        }
+    }
+
+    private void performComputePyramid() {
+        mPyramidScheduled.set(false);
+
+        // The data of a snapshot is never modified, so it's safe to read it from here
+        final DataSnapshot snapshot = mSnapshot;
+        if (snapshot.mPyramid != null || snapshot.mData.size() == 0) {
+            return;
+        }
+        final TimelineDataPyramid pyramid = computePyramid(null, snapshot.mData);
+        if (pyramid == null) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mSnapshot == snapshot) {
+                final DataSnapshot newSnapshot = snapshot.withPyramid(pyramid);
+                if (mPendingSnapshot == snapshot) {
+                    mPendingSnapshot = newSnapshot;
+                }
+                mSnapshot = newSnapshot;
+            }
+        }
+        ViewCompat.postInvalidateOnAnimation(TimelineChartView.this);
+    }
+
+    /**
+     * Reads the data of the observed cursor.
+     *
+     * @return false if the computation was cancelled because a new generation of the
+     *         data was requested.
+     */
+    private boolean processData(int generation) {
         // This optimizations can by applied to data in this method according to the
         // defined current optimization flag:
         //
@@ -1960,120 +4150,401 @@ public class TimelineChartView extends View {
             if (mCursor != null && !mCursor.isClosed() && mCursor.moveToFirst()) {
                 // Load the cursor to memory
                 boolean hasDayFormat = false;
-                double max = 0d;
-                final LongSparseArray<Pair<double[], int[]>> data;
-                // Clone the data if we optimization flag allow it.
-                if (mOptimizationFlag != NO_OPTIMIZATION) {
-                    data = cloneCurrentData(mCursor.getCount());
-                } else {
-                    data = new LongSparseArray<>(mCursor.getCount());
-                }
-
+                MaxValues max = new MaxValues();
                 int series = mCursor.getColumnCount() - 1;
-                if (mItem.mSeries == null || mItem.mSeries.length != series) {
-                    mItem.mSeries = new double[series];
+
+                Cursor source = mCursor;
+                int count = mCursor.getCount();
+                final TimelineAggregator aggregator = mAggregator;
+                if (mOptimizationFlag == WINDOWED_OPTIMIZATION) {
+                    // Only load the records around the current viewport
+                    processDataWindow(series, count);
+                    return true;
                 }
 
-                long lastTimestamp = -1;
+                final TimelineData data;
+                TimelineData previous = null;
+                boolean previousHasDayFormat = false;
+                int previousRow = 0;
+                int first = 0;
                 if (mOptimizationFlag == ONLY_ADDITIONS_OPTIMIZATION) {
-                    hasDayFormat = mTickHasDayFormat;
-                    max = mMaxValue;
-                    mCursor.moveToLast();
+                    // Share the storage of the current data, so only the new records
+                    // need to be appended
+                    final DataSnapshot snapshot = latestSnapshot();
+                    if (snapshot.mSeries == series && !snapshot.mData.isWindowed()
+                            && mDataAggregator == aggregator) {
+                        data = snapshot.mData.share();
+                        retainPublishedData(data);
+                        hasDayFormat = snapshot.mTickHasDayFormat;
+                        max = new MaxValues(snapshot.mMaxValues);
+                    } else {
+                        data = new TimelineData(series, 0);
+                        if (aggregator != null) {
+                            aggregator.reset();
+                        }
+                    }
+
                     if (data.size() > 0) {
-                        lastTimestamp = data.keyAt(data.size() - 1);
+                        // Aggregated data is tracked by the last record aggregated
+                        final long lastTimestamp =
+                                aggregator != null && aggregator.lastTimestamp() != Long.MIN_VALUE
+                                        ? aggregator.lastTimestamp() : data.lastTimestamp();
+                        final Cursor newer = queryNewerThan(lastTimestamp, series);
+                        if (newer != null) {
+                            // Read only the new records from the provider
+                            source = newer;
+                            count = newer.getCount();
+                        } else if (mCursorWatermark > 0 && mCursorWatermark <= count
+                                && mCursor.moveToPosition(mCursorWatermark - 1)
+                                && mCursor.getLong(0) == lastTimestamp) {
+                            // Records were only appended since the last iteration
+                            first = mCursorWatermark;
+                        } else {
+                            // Walk backwards to the last record saw in the last iteration
+                            mCursor.moveToLast();
+                            do {
+                                if (mCursor.getLong(0) == lastTimestamp) {
+                                    first = mCursor.getPosition() + 1;
+                                    break;
+                                }
+                            } while (mCursor.moveToPrevious());
+                        }
+                    }
+
+                    // Don't read records that will be evicted right away
+                    if (mRetentionMaxItems > 0 && aggregator == null) {
+                        first = Math.max(first, count - mRetentionMaxItems);
+                    }
+                    data.ensureFreeCapacity((count - first) + LIVE_DATA_FREE_CAPACITY);
+                } else if (mOptimizationFlag == NO_DELETES_OPTIMIZATION && aggregator == null) {
+                    // Merge the current data with the records of the cursor in a single pass
+                    final DataSnapshot snapshot = latestSnapshot();
+                    if (snapshot.mSeries == series && snapshot.mData.size() > 0
+                            && mDataAggregator == null
+                            && !snapshot.mData.isWindowed()) {
+                        previous = snapshot.mData;
+                        previousHasDayFormat = snapshot.mTickHasDayFormat;
+                    }
+                    data = new TimelineData(series,
+                            count + (previous != null ? previous.size() : 0));
+                } else {
+                    data = new TimelineData(series, count);
+                    if (aggregator != null) {
+                        // Aggregated data is always computed from scratch
+                        aggregator.reset();
                     }
                 }
 
-                // Extract the data from the cursor applying the current optimization flag.
+                // Scratch buffer used to aggregate the series of a row
+                final double[] seriesData = new double[series];
+
+                // Big loads are post-processed in parallel once all the records are read
+                final boolean parallel = aggregator == null && previous == null
+                        && POST_PROCESS_THREADS > 1 && (count - first) >= PARALLEL_MIN_ROWS;
+                final int firstNewRow = data.size();
+                final int modCount = data.modCount();
+
+                // Extract the data from the cursor (in blocks) applying the current
+                // optimization flag.
+                final CursorBlockReader reader = new CursorBlockReader(source, series, count);
                 int lastTickLabelFormat = -1;
-                do {
-                    long timestamp = mCursor.getLong(0);
-                    if (timestamp == lastTimestamp
-                            && mOptimizationFlag == ONLY_ADDITIONS_OPTIMIZATION) {
-                        break;
+                int position = first;
+                int read;
+                while ((read = reader.read(position)) > 0) {
+                    if (generation != mDataGeneration.get()) {
+                        // Stale data. Discard it
+                        cancelProcessData(source, aggregator);
+                        return false;
                     }
+                    for (int n = 0; n < read; n++) {
+                        long timestamp = reader.timestampAt(n);
 
-                    // Determine the best tick vertical alignment
-                    final int tickLabelFormat = getTickLabelFormat(timestamp);
-                    if (tickLabelFormat == TICK_LABEL_DAY_FORMAT ||
-                            (lastTickLabelFormat != -1 && lastTickLabelFormat != tickLabelFormat)) {
-                        hasDayFormat = true;
-                    }
-                    lastTickLabelFormat = tickLabelFormat;
+                        if (aggregator != null) {
+                            // Aggregate the record in its bucket
+                            for (int i = 0; i < series; i++) {
+                                seriesData[i] = reader.valueAt(n, i);
+                            }
+                            final int last = data.size() - 1;
+                            final int row = aggregator.add(data, timestamp, seriesData);
+                            if (row == -1) {
+                                continue;
+                            }
+                            if (row != last) {
+                                // Determine the best tick vertical alignment of the new bucket
+                                final int tickLabelFormat =
+                                        getTickLabelFormat(data.timestampAt(row));
+                                data.setTickFormat(row, tickLabelFormat);
+                                if (tickLabelFormat == TICK_LABEL_DAY_FORMAT
+                                        || (lastTickLabelFormat != -1
+                                                && lastTickLabelFormat != tickLabelFormat)) {
+                                    hasDayFormat = true;
+                                }
+                                lastTickLabelFormat = tickLabelFormat;
+                            }
+                            max.add(data, row);
+                            continue;
+                        }
 
-                    final double[] seriesData;
-                    final int[] indexes;
-                    if (mOptimizationFlag == NO_OPTIMIZATION) {
-                        seriesData = new double[series];
-                        indexes = new int[series];
-                    } else {
-                        Pair<double[], int[]> v = data.get(timestamp);
-                        if (v != null) {
-                            seriesData = v.first;
-                            indexes = v.second;
-                        } else {
-                            seriesData = new double[series];
-                            indexes = new int[series];
+                        // Copy the previous records older than this one (the record
+                        // replaces the previous one with the same timestamp)
+                        if (previous != null) {
+                            int end = previous.size();
+                            final boolean sorted = data.size() == 0
+                                    || timestamp > data.lastTimestamp();
+                            if (sorted) {
+                                end = previousRow;
+                                while (end < previous.size()
+                                        && previous.timestampAt(end) < timestamp) {
+                                    end++;
+                                }
+                            }
+                            if (end > previousRow) {
+                                mergeRows(data, previous, previousRow, end, max);
+                                hasDayFormat |= previousHasDayFormat;
+                                previousRow = end;
+                            }
+                            if (!sorted) {
+                                // The cursor isn't sorted. Fallback to sorted inserts
+                                previous = null;
+                            } else if (previousRow < previous.size()
+                                    && previous.timestampAt(previousRow) == timestamp) {
+                                previousRow++;
+                            }
                         }
-                    }
-                    double stackVal = 0d;
-                    for (int i = 0; i < series; i++) {
-                        final double v = mCursor.getDouble(i + 1);
-                        seriesData[i] = v;
-                        if (mGraphMode != GRAPH_MODE_BARS_STACK && v > max) {
-                            max = v;
-                        } else {
-                            stackVal += v;
+
+                        final int row = data.put(timestamp);
+                        for (int i = 0; i < series; i++) {
+                            data.setValue(row, i, reader.valueAt(n, i));
                         }
-                        indexes[i] = i;
-                    }
-                    if (mGraphMode == GRAPH_MODE_BARS_STACK && stackVal > max) {
-                        max = stackVal;
+                        if (parallel) {
+                            continue;
+                        }
+
+                        // Determine the best tick vertical alignment
+                        final int tickLabelFormat = getTickLabelFormat(timestamp);
+                        data.setTickFormat(row, tickLabelFormat);
+                        if (tickLabelFormat == TICK_LABEL_DAY_FORMAT
+                                || (lastTickLabelFormat != -1
+                                        && lastTickLabelFormat != tickLabelFormat)) {
+                            hasDayFormat = true;
+                        }
+                        lastTickLabelFormat = tickLabelFormat;
+                        max.add(data, row);
                     }
+                    position += read;
+                }
 
-                    // Sort the items to properly one over other in screen
-                    if (mGraphMode == GRAPH_MODE_BARS) {
-                        ArraysHelper.sort(seriesData, indexes);
+                if (parallel) {
+                    int from = firstNewRow;
+                    if (data.modCount() != modCount) {
+                        // Records were inserted between the existing ones. Process all of them
+                        from = 0;
+                        max = new MaxValues();
+                        hasDayFormat = false;
                     }
-                    Pair<double[], int[]> pair = new Pair<>(seriesData, indexes);
-                    data.put(timestamp, pair);
-                } while (mOptimizationFlag == ONLY_ADDITIONS_OPTIMIZATION
-                        ? mCursor.moveToPrevious() : mCursor.moveToNext());
+                    hasDayFormat |= postProcessData(data, from, max);
+                }
+
+                // Copy the rest of the previous records
+                if (previous != null && previousRow < previous.size()) {
+                    mergeRows(data, previous, previousRow, previous.size(), max);
+                    hasDayFormat |= previousHasDayFormat;
+                }
+
+                // Save the watermark of the observed cursor for the next iteration
+                if (source != mCursor) {
+                    source.close();
+                    mCursorWatermark = -1;
+                } else {
+                    mCursorWatermark = count;
+                }
+
+                // Evict the records out of the retention limits
+                if (mOptimizationFlag == ONLY_ADDITIONS_OPTIMIZATION) {
+                    applyRetention(data, max);
+                }
 
                 // Calculate the max available offset
                 int size = data.size() - 1;
                 float maxOffset = mBarWidth * size;
 
-                //swap data
+                // Prepare the snapshot to swap (palette is resolved when swapped)
+                final TimelineDataPyramid pyramid =
+                        computePyramid(latestSnapshot().mPyramid, data);
+                final DataSnapshot snapshot = new DataSnapshot(data, max, maxOffset,
+                        hasDayFormat, null, null, null, pyramid);
                 synchronized (mLock) {
-                    mSeriesSwap = series;
-                    mDataSwap = data;
-                    mMaxValueSwap = max;
-                    mMaxOffsetSwap = maxOffset;
-                    mTickHasDayFormatSwap = hasDayFormat;
+                    if (generation != mDataGeneration.get()) {
+                        cancelProcessData(null, aggregator);
+                        return false;
+                    }
+                    mPendingSnapshot = snapshot;
                 }
+                mDataAggregator = aggregator;
             } else {
                 // Cursor is empty or closed
                 clearSwapRefs();
             }
         }
+        return true;
+    }
+
+    private void cancelProcessData(Cursor source, TimelineAggregator aggregator) {
+        if (source != null && source != mCursor) {
+            source.close();
+        }
+        if (aggregator != null) {
+            // The state of the aggregator doesn't match the current data anymore
+            aggregator.reset();
+            mDataAggregator = null;
+        }
+    }
+
+    /**
+     * Computes the max values and the tick label formats of the rows of the data starting
+     * at the row passed as argument, splitting the rows in ranges processed in parallel.
+     *
+     * @return whether the tick labels of the rows need the day format.
+     */
+    private boolean postProcessData(TimelineData data, int from, MaxValues max) {
+        final int to = data.size();
+        final int chunk = (to - from + POST_PROCESS_THREADS - 1) / POST_PROCESS_THREADS;
+        final TickLabelClassifier classifier = mTickLabelClassifier;
+        List<PostProcessTask> tasks = new ArrayList<>(POST_PROCESS_THREADS);
+        for (int start = from; start < to; start += chunk) {
+            tasks.add(new PostProcessTask(data, start, Math.min(to, start + chunk),
+                    classifier, mPostProcessClassifiers));
+        }
+        final ExecutorService executor;
+        synchronized (mLock) {
+            executor = mPostProcessExecutor;
+        }
+        boolean processed = false;
+        if (executor != null) {
+            try {
+                executor.invokeAll(tasks);
+                processed = true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (RejectedExecutionException ex) {
+                // The view was detached meanwhile
+            }
+        }
+        if (!processed) {
+            // Process all the rows in this thread
+            tasks = Collections.singletonList(new PostProcessTask(data, from, to,
+                    classifier, mPostProcessClassifiers).call());
+        }
+
+        // Combine the results of the ranges (in order)
+        boolean hasDayFormat = false;
+        int lastTickLabelFormat = -1;
+        for (PostProcessTask task : tasks) {
+            max.merge(task.mMax);
+            if (task.mHasDayFormat || (lastTickLabelFormat != -1
+                    && lastTickLabelFormat != task.mFirstTickLabelFormat)) {
+                hasDayFormat = true;
+            }
+            lastTickLabelFormat = task.mLastTickLabelFormat;
+        }
+        return hasDayFormat;
+    }
+
+    private static ExecutorService createPostProcessExecutor() {
+        // Idle threads are released after a while
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                POST_PROCESS_THREADS, POST_PROCESS_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, TAG + "PostProcessThread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void applyRetention(TimelineData data, MaxValues max) {
+        final int size = data.size();
+        int evict = 0;
+        if (mRetentionMaxItems > 0 && size > mRetentionMaxItems) {
+            evict = size - mRetentionMaxItems;
+        }
+        if (mRetentionTimeWindow > 0 && size > 0) {
+            final long oldest = data.lastTimestamp() - mRetentionTimeWindow;
+            while (evict < size && data.timestampAt(evict) < oldest) {
+                evict++;
+            }
+        }
+        if (evict == 0) {
+            return;
+        }
+
+        // Only recompute the max values if any of them was evicted
+        boolean maxEvicted = false;
+        for (int i = 0; i < evict && !maxEvicted; i++) {
+            maxEvicted = max.isHeldBy(data, i);
+        }
+        data.evict(evict);
+        if (maxEvicted) {
+            max.mMax = 0d;
+            max.mStackMax = 0d;
+            final int count = data.size();
+            for (int i = 0; i < count; i++) {
+                max.add(data, i);
+            }
+        }
     }
 
-    private LongSparseArray<Pair<double[], int[]>> cloneCurrentData(int capacity) {
-        final LongSparseArray<Pair<double[], int[]>> prevData;
+    private DataSnapshot latestSnapshot() {
         synchronized (mLock) {
-            prevData = mData;
+            return mPendingSnapshot != null ? mPendingSnapshot : mSnapshot;
         }
-        if (prevData != null) {
-            final int size = prevData.size();
-            final LongSparseArray<Pair<double[], int[]>> data
-                    = new LongSparseArray<>(Math.max(capacity, size));
-            for (int i = 0; i < size; i++) {
-                data.append(prevData.keyAt(i), prevData.valueAt(i));
+    }
+
+    /**
+     * Preserves the rows of all the published data (the current and pending snapshots,
+     * the one being drawn and the one of the tiles) while appending rows to a data which
+     * shares their storage, so the ring buffer never overwrites rows still in use.
+     */
+    private void retainPublishedData(TimelineData data) {
+        final DataSnapshot drawing = mDrawingSnapshot;
+        final TileSpec spec = mTileSpec;
+        synchronized (mLock) {
+            data.retain(mSnapshot.mData);
+            if (mPendingSnapshot != null) {
+                data.retain(mPendingSnapshot.mData);
             }
-            return data;
         }
-        return new LongSparseArray<>();
+        if (drawing != null) {
+            data.retain(drawing.mData);
+        }
+        if (spec != null) {
+            data.retain(spec.mSnapshot.mData);
+        }
+    }
+
+    private Cursor queryNewerThan(long timestamp, int series) {
+        if (mIncrementalDataProvider == null) {
+            return null;
+        }
+        final Cursor c = mIncrementalDataProvider.queryNewerThan(timestamp);
+        if (c != null && c.getColumnCount() - 1 != series) {
+            Log.w(TAG, "Incremental data doesn't match the observed data. Ignored.");
+            c.close();
+            return null;
+        }
+        return c;
+    }
+
+    private void mergeRows(TimelineData data, TimelineData src, int from, int to, MaxValues max) {
+        for (int i = from; i < to; i++) {
+            final int row = data.append(src.timestampAt(i));
+            data.copyRow(row, src, i);
+            max.add(data, row);
+        }
     }
 
     private void checkCursorIntegrity(Cursor c) {
@@ -2100,11 +4571,23 @@ public class TimelineChartView extends View {
     }
 
     private void setupSeriesBackground(int color) {
-        int[] currentPalette = new int[mSeries];
-        Paint[] seriesBgPaint = new Paint[mSeries];
-        Paint[] highlightSeriesBgPaint = new Paint[mSeries];
-        if (mSeries == 0) {
-            return;
+        synchronized (mLock) {
+            final DataSnapshot snapshot = createSeriesPalette(mSnapshot, color);
+            mSnapshot = snapshot;
+            if (mPendingSnapshot != null && mPendingSnapshot.mSeries == snapshot.mSeries) {
+                mPendingSnapshot = mPendingSnapshot.withPalette(snapshot);
+            }
+        }
+        notifyOnColorPaletteChangedIfNeeded();
+    }
+
+    private DataSnapshot createSeriesPalette(DataSnapshot snapshot, int color) {
+        final int series = snapshot.mSeries;
+        int[] currentPalette = new int[series];
+        Paint[] seriesBgPaint = new Paint[series];
+        Paint[] highlightSeriesBgPaint = new Paint[series];
+        if (series == 0) {
+            return snapshot.withPalette(currentPalette, seriesBgPaint, highlightSeriesBgPaint);
         }
 
         int userPaletteCount = 0;
@@ -2121,9 +4604,9 @@ public class TimelineChartView extends View {
         }
 
         // Generate bar items palette based on background color
-        int needed = mSeries - userPaletteCount;
+        int needed = series - userPaletteCount;
         int[] palette = MaterialPaletteHelper.createMaterialSpectrumPalette(color, needed);
-        for (int i = userPaletteCount; i < mSeries; i++) {
+        for (int i = userPaletteCount; i < series; i++) {
             seriesBgPaint[i] = new Paint();
             currentPalette[i] = palette[i - userPaletteCount];
             seriesBgPaint[i].setColor(currentPalette[i]);
@@ -2132,58 +4615,78 @@ public class TimelineChartView extends View {
                     MaterialPaletteHelper.getComplementaryColor(currentPalette[i]));
         }
 
-        final boolean changed = !(Arrays.equals(currentPalette, mCurrentPalette));
+        return snapshot.withPalette(currentPalette, seriesBgPaint, highlightSeriesBgPaint);
+    }
 
+    /**
+     * Publishes the pending snapshot. The view state depending on the data is updated
+     * later from the UI thread (see {@link #updatePublishedData(boolean)}).
+     */
+    private void swapRefs() {
         synchronized (mLock) {
-            mCurrentPalette = currentPalette;
-            mSeriesBgPaint = seriesBgPaint;
-            mHighlightSeriesBgPaint = highlightSeriesBgPaint;
-        }
+            DataSnapshot pending = mPendingSnapshot;
+            if (pending == null) {
+                return;
+            }
+            if (pending.mPalette == null) {
+                // Reuse the current palette if the number of series didn't change
+                final DataSnapshot current = mSnapshot;
+                pending = pending.mSeries == current.mSeries
+                        ? pending.withPalette(current)
+                        : createSeriesPalette(pending, mGraphAreaBgPaint.getColor());
+                mPendingSnapshot = pending;
+            }
 
-        if (changed) {
-            notifyOnColorPaletteChanged();
+            // Publish the new data
+            mSnapshot = pending;
         }
     }
 
-    private void swapRefs() {
-        synchronized (mLock) {
-            mSeries = mSeriesSwap;
-            mData = mDataSwap;
-            mMaxValue = mMaxValueSwap;
-            mLastOffset = -1.f;
-            mMaxOffset = mMaxOffsetSwap;
-
-            // Compute current offset and timestamp
-            final int index = mData.indexOfKey(mCurrentTimestamp);
+    /**
+     * Updates the view state which depends on the published data. Must be called from
+     * the UI thread, which owns the offsets and the tick labels.
+     */
+    private void updatePublishedData(boolean computeOffset) {
+        final DataSnapshot snapshot = mSnapshot;
+        mLastOffset = -1.f;
+
+        // Compute current offset and timestamp
+        if (computeOffset) {
+            final int index = snapshot.mData.indexOf(mCurrentTimestamp);
             final boolean lastItem = mCurrentOffset == 0.f;
             final boolean haveTimestamp = index >= 0;
             if (haveTimestamp && (!lastItem || !mFollowCursorPosition)) {
-                mCurrentOffset = computeOffsetForTimestamp(mCurrentTimestamp);
+                mCurrentOffset = computeOffsetForTimestamp(snapshot.mData, mCurrentTimestamp);
             } else {
                 mCurrentOffset = 0;
                 mCurrentTimestamp = -2;
             }
+        }
 
-            // Setup tick labels if we detected changes
-            if (mTickHasDayFormat != mTickHasDayFormatSwap) {
-                mTickHasDayFormat = mTickHasDayFormatSwap;
-                setupTickLabels();
-            }
+        // Setup tick labels if we detected changes
+        if (mTickHasDayFormat != snapshot.mTickHasDayFormat) {
+            mTickHasDayFormat = snapshot.mTickHasDayFormat;
+            setupTickLabels();
         }
     }
 
     private void clearSwapRefs() {
-        mDataSwap.clear();
-        mMaxValueSwap = 0d;
-        mTickHasDayFormatSwap = false;
+        synchronized (mLock) {
+            mPendingSnapshot = new DataSnapshot(new TimelineData(mSnapshot.mSeries, 0),
+                    new MaxValues(), 0.f, false, null, null, null);
+        }
     }
 
     private void clear() {
         synchronized (mLock) {
-            mData.clear();
-            mMaxValue = 0d;
-            mCurrentTimestamp = -1;
+            mDataGeneration.incrementAndGet();
+            final DataSnapshot snapshot = mSnapshot;
+            mPendingSnapshot = null;
+            mSnapshot = new DataSnapshot(new TimelineData(snapshot.mSeries, 0),
+                    new MaxValues(), 0.f, snapshot.mTickHasDayFormat, snapshot.mPalette,
+                    snapshot.mSeriesBgPaint, snapshot.mHighlightSeriesBgPaint);
         }
+        mCurrentTimestamp = -1;
     }
 
     private void notifyGenericClickEvent(ItemEvent itemEvent) {
@@ -2229,6 +4732,14 @@ public class TimelineChartView extends View {
         }
     }
 
+    private void notifyOnColorPaletteChangedIfNeeded() {
+        final int[] palette = mSnapshot.mPalette;
+        if (!Arrays.equals(palette, mCurrentPalette)) {
+            mCurrentPalette = palette;
+            notifyOnColorPaletteChanged();
+        }
+    }
+
     private void notifyOnColorPaletteChanged() {
         for (OnColorPaletteChangedListener cb : mOnColorPaletteChangedCallbacks) {
             cb.onColorPaletteChanged(mCurrentPalette);
@@ -2236,20 +4747,20 @@ public class TimelineChartView extends View {
     }
 
     private Item obtainItem(long timestamp) {
-        final Pair<double[], int[]> data;
-        final int count;
-        synchronized (mLock) {
-            data = mData.get(timestamp);
-            count = mSeries;
-        }
-        if (data == null) {
+        final TimelineData data = mSnapshot.mData;
+        final int count = data.series();
+        final int row = data.indexOf(timestamp);
+        if (row < 0) {
             return null;
         }
 
-        // Compute item. Restore original sort before notify
+        // Compute item. Values are stored in the original sort
+        if (mItem.mSeries == null || mItem.mSeries.length != count) {
+            mItem.mSeries = new double[count];
+        }
         mItem.mTimestamp = timestamp;
         for (int i = 0; i < count; i++) {
-            mItem.mSeries[i] = data.first[data.second[i]];
+            mItem.mSeries[i] = data.valueAt(row, i);
         }
         return mItem;
     }
@@ -2279,18 +4790,7 @@ public class TimelineChartView extends View {
     }
 
     private int getTickLabelFormat(long timestamp) {
-        mTickCalendar.setTimeInMillis(timestamp);
-        final int hour = mTickCalendar.get(Calendar.HOUR_OF_DAY);
-        final int minute = mTickCalendar.get(Calendar.MINUTE);
-        final int second = mTickCalendar.get(Calendar.SECOND);
-        final int millisecond = mTickCalendar.get(Calendar.MILLISECOND);
-        if (hour == 0 && minute == 0 && second == 0 && millisecond == 0) {
-            return TICK_LABEL_DAY_FORMAT;
-        }
-        if (second == 0 && millisecond == 0) {
-            return TICK_LABEL_HOUR_MINUTES_FORMAT;
-        }
-        return TICK_LABEL_SECONDS_FORMAT;
+        return mTickLabelClassifier.classify(timestamp);
     }
 
     private void performSelectionSoundEffect() {
@@ -2326,33 +4826,32 @@ public class TimelineChartView extends View {
                     mCursor.close();
                 }
                 mCursor = null;
-                mSeries = 0;
-                mItem.mSeries = new double[mSeries];
             }
         }
     }
 
     private void setupViewInEditMode() {
-        final int[] INDEXES = new int[]{0, 1};
-        mData = new LongSparseArray<>();
-        mData.put(1452639600000L, new Pair<>(new double[]{1867263,2262779}, INDEXES));
-        mData.put(1452726000000L, new Pair<>(new double[]{578273,2871800}, INDEXES));
-        mData.put(1452812400000L, new Pair<>(new double[]{2709,2960491}, INDEXES));
-        mData.put(1452898800000L, new Pair<>(new double[]{1322623,6864896}, INDEXES));
-        mData.put(1452985200000L, new Pair<>(new double[]{1272367,4282328}, INDEXES));
-        mData.put(1453071600000L, new Pair<>(new double[]{115774,7706941}, INDEXES));
-        mData.put(1453158000000L, new Pair<>(new double[]{1920784,3800944}, INDEXES));
-        mData.put(1453244400000L, new Pair<>(new double[]{534265,5978142}, INDEXES));
-        mData.put(1453330800000L, new Pair<>(new double[]{117245,7801457}, INDEXES));
-        mData.put(1453417200000L, new Pair<>(new double[]{430320,5054115}, INDEXES));
-        mData.put(1453503600000L, new Pair<>(new double[]{2461596,8174509}, INDEXES));
-        mData.put(1453590000000L, new Pair<>(new double[]{702240,503133}, INDEXES));
-        mData.put(1453676400000L, new Pair<>(new double[]{1364885,4013798}, INDEXES));
-        mData.put(1453762800000L, new Pair<>(new double[]{1310028,877585}, INDEXES));
-        mData.put(1453849200000L, new Pair<>(new double[]{801779,8092978}, INDEXES));
-        mData.put(1453935600000L, new Pair<>(new double[]{1089847,3678389}, INDEXES));
-        mSeries = 2;
-        mMaxValue = 8174509;
+        final long[] timestamps = new long[]{
+                1452639600000L, 1452726000000L, 1452812400000L, 1452898800000L,
+                1452985200000L, 1453071600000L, 1453158000000L, 1453244400000L,
+                1453330800000L, 1453417200000L, 1453503600000L, 1453590000000L,
+                1453676400000L, 1453762800000L, 1453849200000L, 1453935600000L};
+        final double[][] values = new double[][]{
+                {1867263,2262779}, {578273,2871800}, {2709,2960491}, {1322623,6864896},
+                {1272367,4282328}, {115774,7706941}, {1920784,3800944}, {534265,5978142},
+                {117245,7801457}, {430320,5054115}, {2461596,8174509}, {702240,503133},
+                {1364885,4013798}, {1310028,877585}, {801779,8092978}, {1089847,3678389}};
+        final TimelineData data = new TimelineData(2, timestamps.length);
+        final TickLabelClassifier classifier = new TickLabelClassifier(TimeZone.getDefault());
+        final MaxValues max = new MaxValues();
+        for (int i = 0; i < timestamps.length; i++) {
+            final int row = data.put(timestamps[i]);
+            data.setTickFormat(row, classifier.classify(timestamps[i]));
+            for (int j = 0; j < 2; j++) {
+                data.setValue(row, j, values[i][j]);
+            }
+            max.add(data, row);
+        }
         //setupSeriesBackground(mGraphAreaBgPaint.getColor());
         mIsDataComputed = true;
         mState = STATE_IDLE;
@@ -2364,17 +4863,20 @@ public class TimelineChartView extends View {
         int[] palette2 = MaterialPaletteHelper.createMaterialSpectrumPalette(
                 MaterialPaletteHelper.getComplementaryColor(mGraphAreaBgPaint.getColor()), 2);
 
-        mSeriesBgPaint = new Paint[2];
-        mSeriesBgPaint[0] = new Paint();
-        mSeriesBgPaint[0].setColor(palette1[0]);
-        mSeriesBgPaint[1] = new Paint();
-        mSeriesBgPaint[1].setColor(palette1[1]);
-
-        mHighlightSeriesBgPaint = new Paint[2];
-        mHighlightSeriesBgPaint[0] = new Paint();
-        mHighlightSeriesBgPaint[0].setColor(palette2[0]);
-        mHighlightSeriesBgPaint[1] = new Paint();
-        mHighlightSeriesBgPaint[1].setColor(palette2[1]);
+        final Paint[] seriesBgPaint = new Paint[2];
+        seriesBgPaint[0] = new Paint();
+        seriesBgPaint[0].setColor(palette1[0]);
+        seriesBgPaint[1] = new Paint();
+        seriesBgPaint[1].setColor(palette1[1]);
+
+        final Paint[] highlightSeriesBgPaint = new Paint[2];
+        highlightSeriesBgPaint[0] = new Paint();
+        highlightSeriesBgPaint[0].setColor(palette2[0]);
+        highlightSeriesBgPaint[1] = new Paint();
+        highlightSeriesBgPaint[1].setColor(palette2[1]);
+
+        mSnapshot = new DataSnapshot(data, max, 0.f, true,
+                palette1, seriesBgPaint, highlightSeriesBgPaint);
 
     }
 }
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import java.util.Arrays;
+
+/**
+ * A columnar store of the timeline data. Rows are kept sorted ascending by timestamp
+ * in primitive arrays, so no objects are created per row:
+ * <ul>
+ *     <li>timestamps: one {@code long} per row.</li>
+ *     <li>values: the values of all the series of a row, flatten as
+ *         {@code values[row * series + serie]}.</li>
+ *     <li>tick formats: the format of the tick label of the row, one {@code byte} per row
+ *         (computed when the row is read, so it's not computed on every draw).</li>
+ * </ul>
+ * <p />
+ * The arrays are used as a ring buffer, so the oldest rows can be evicted in O(1). A
+ * {@link #share() shared} view references the same storage than its source, which
+ * allows to append rows without copying the previous ones. Only appends are allowed
+ * over the shared storage; any other modification copies the rows first. Appends never
+ * overwrite the rows of the source of the view, nor the rows of any other view
+ * {@link #retain(TimelineData) retained} by it (the storage is reallocated instead).
+ * <p />
+ * A data can also be marked as a {@link #setWindow(int, int) window} of a bigger data,
+ * holding only a contiguous range of its rows. Rows of a window are accessed (read and
+ * written) by their index in the whole data.
+ * <p />
+ * The last row can be kept {@link #appendOpen(long) open}. An open row lives out of
+ * the shared storage (every view has its own copy), so it can be updated in place
+ * (ie: while aggregating rows) without affecting the other views. It's moved to the
+ * storage when a new row is appended.
+ */
+final class TimelineData {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int mSeries;
+    private long[] mTimestamps;
+    private double[] mValues;
+    private byte[] mTickFormats;
+    private int mCapacity;
+    private int mHead;
+    private int mSize;
+    private boolean mShared;
+    private int mWindowStart;
+    private int mTotalSize = -1;
+    private long mEvicted;
+    // The absolute index of the oldest row of the shared storage that must be preserved
+    private long mRetained;
+    private int mModCount;
+    private boolean mOpen;
+    private long mOpenTimestamp;
+    private double[] mOpenValues;
+    private byte mOpenTickFormat;
+
+    TimelineData(int series, int capacity) {
+        mSeries = series;
+        allocate(Math.max(capacity, MIN_CAPACITY));
+    }
+
+    private TimelineData(TimelineData src) {
+        mSeries = src.mSeries;
+        mTimestamps = src.mTimestamps;
+        mValues = src.mValues;
+        mTickFormats = src.mTickFormats;
+        mCapacity = src.mCapacity;
+        mHead = src.mHead;
+        mSize = src.mSize;
+        mShared = true;
+        mWindowStart = src.mWindowStart;
+        mTotalSize = src.mTotalSize;
+        mEvicted = src.mEvicted;
+        mRetained = src.mEvicted;
+        mModCount = src.mModCount;
+        mOpen = src.mOpen;
+        mOpenTimestamp = src.mOpenTimestamp;
+        mOpenTickFormat = src.mOpenTickFormat;
+        if (src.mOpenValues != null) {
+            mOpenValues = src.mOpenValues.clone();
+        }
+    }
+
+    /**
+     * Returns a view of this data which shares the same storage. Rows appended to
+     * the view are not visible by this data.
+     */
+    TimelineData share() {
+        mShared = true;
+        return new TimelineData(this);
+    }
+
+    /**
+     * Preserves the rows of the data passed as argument (if it shares the storage of this
+     * data) while appending rows to this data.
+     */
+    void retain(TimelineData data) {
+        if (sharesStorage(data)) {
+            mRetained = Math.min(mRetained, data.mEvicted);
+        }
+    }
+
+    /**
+     * Marks this data as a window of a bigger data, holding its rows starting at the
+     * row passed as argument.
+     */
+    void setWindow(int start, int totalSize) {
+        mWindowStart = start;
+        mTotalSize = totalSize;
+    }
+
+    boolean isWindowed() {
+        return mTotalSize != -1;
+    }
+
+    /**
+     * Returns the first row held by this data.
+     */
+    int windowStart() {
+        return mWindowStart;
+    }
+
+    /**
+     * Returns the row after the last row held by this data.
+     */
+    int windowEnd() {
+        return mOpen ? mWindowStart + mSize + 1 : mWindowStart + mSize;
+    }
+
+    /**
+     * Returns whether the row passed as argument is held by this data.
+     */
+    boolean isLoaded(int row) {
+        return row >= mWindowStart && row < windowEnd();
+    }
+
+    /**
+     * Returns the number of rows of the data (the whole data if this data is a window).
+     */
+    int size() {
+        if (mTotalSize != -1) {
+            return mTotalSize;
+        }
+        return mOpen ? mSize + 1 : mSize;
+    }
+
+    /**
+     * Returns whether the last row of the data is open.
+     */
+    boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * Returns the row after the last row held in the shared storage (the open row
+     * isn't held in the storage).
+     */
+    int storedEnd() {
+        return mWindowStart + mSize;
+    }
+
+    int series() {
+        return mSeries;
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns whether this data and the one passed as argument share the same storage.
+     */
+    boolean sharesStorage(TimelineData data) {
+        return mTimestamps == data.mTimestamps;
+    }
+
+    /**
+     * Returns the number of rows evicted from this data, which is the absolute
+     * index of its first row.
+     */
+    long evicted() {
+        return mEvicted;
+    }
+
+    /**
+     * Returns the number of times the existing rows of this data were modified (rows
+     * appended and evicted doesn't count as modifications).
+     */
+    int modCount() {
+        return mModCount;
+    }
+
+    // NOTE: The open row (if any) is the only row which can be at mSize
+
+    long timestampAt(int row) {
+        row -= mWindowStart;
+        if (row == mSize) {
+            return mOpenTimestamp;
+        }
+        return mTimestamps[position(row)];
+    }
+
+    long lastTimestamp() {
+        return mOpen ? mOpenTimestamp : mTimestamps[position(mSize - 1)];
+    }
+
+    double valueAt(int row, int serie) {
+        row -= mWindowStart;
+        if (row == mSize) {
+            return mOpenValues[serie];
+        }
+        return mValues[position(row) * mSeries + serie];
+    }
+
+    int tickFormatAt(int row) {
+        row -= mWindowStart;
+        if (row == mSize) {
+            return mOpenTickFormat;
+        }
+        return mTickFormats[position(row)];
+    }
+
+    void setTickFormat(int row, int format) {
+        row -= mWindowStart;
+        if (row == mSize) {
+            mOpenTickFormat = (byte) format;
+        } else {
+            mTickFormats[position(row)] = (byte) format;
+        }
+    }
+
+    void setValue(int row, int serie, double value) {
+        row -= mWindowStart;
+        if (row == mSize) {
+            mOpenValues[serie] = value;
+        } else {
+            mValues[position(row) * mSeries + serie] = value;
+        }
+    }
+
+    /**
+     * Copies the values and the tick format of a row of other data (with the same series)
+     * to a stored row.
+     */
+    void copyRow(int row, TimelineData src, int srcRow) {
+        final int position = position(row - mWindowStart);
+        srcRow -= src.mWindowStart;
+        if (srcRow == src.mSize) {
+            System.arraycopy(src.mOpenValues, 0, mValues, position * mSeries, mSeries);
+            mTickFormats[position] = src.mOpenTickFormat;
+            return;
+        }
+        final int srcPosition = src.position(srcRow);
+        System.arraycopy(src.mValues, srcPosition * mSeries,
+                mValues, position * mSeries, mSeries);
+        mTickFormats[position] = src.mTickFormats[srcPosition];
+    }
+
+    /**
+     * Returns the row of the timestamp, or a negative value if the timestamp
+     * doesn't exists (same as {@link Arrays#binarySearch(long[], long)}).
+     */
+    int indexOf(long timestamp) {
+        if (mOpen && timestamp >= mOpenTimestamp) {
+            return timestamp == mOpenTimestamp
+                    ? mSize + mWindowStart : ~(mSize + 1 + mWindowStart);
+        }
+        if (mHead + mSize <= mCapacity) {
+            final int index = Arrays.binarySearch(mTimestamps, mHead, mHead + mSize, timestamp);
+            return index >= 0
+                    ? index - mHead + mWindowStart
+                    : index + mHead - mWindowStart;
+        }
+
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long v = mTimestamps[position(mid)];
+            if (v < timestamp) {
+                low = mid + 1;
+            } else if (v > timestamp) {
+                high = mid - 1;
+            } else {
+                return mid + mWindowStart;
+            }
+        }
+        return ~(low + mWindowStart);
+    }
+
+    /**
+     * Returns the row of the timestamp, creating a new one (preserving the sort
+     * of the rows) if the timestamp doesn't exists.
+     */
+    int put(long timestamp) {
+        // Fast path: most of the data comes sorted
+        if (size() == 0 || lastTimestamp() < timestamp) {
+            return append(timestamp);
+        }
+
+        closeOpenRow();
+        int row = indexOf(timestamp);
+        mModCount++;
+        if (row >= 0) {
+            unshare();
+            return row;
+        }
+        row = ~row - mWindowStart;
+        unshare();
+        ensureFreeCapacity(1);
+        final int count = mSize - row;
+        System.arraycopy(mTimestamps, row, mTimestamps, row + 1, count);
+        System.arraycopy(mValues, row * mSeries, mValues, (row + 1) * mSeries, count * mSeries);
+        System.arraycopy(mTickFormats, row, mTickFormats, row + 1, count);
+        mTimestamps[row] = timestamp;
+        mSize++;
+        return row + mWindowStart;
+    }
+
+    /**
+     * Appends a new row at the end. The timestamp must be greater than the
+     * last timestamp of the data.
+     */
+    int append(long timestamp) {
+        closeOpenRow();
+        ensureFreeCapacity(1);
+        mTimestamps[position(mSize)] = timestamp;
+        return mWindowStart + mSize++;
+    }
+
+    /**
+     * Appends a new open row at the end (moving the current open row to the storage).
+     * The timestamp must be greater than the last timestamp of the data.
+     */
+    int appendOpen(long timestamp) {
+        closeOpenRow();
+        if (mOpenValues == null) {
+            mOpenValues = new double[mSeries];
+        }
+        mOpen = true;
+        mOpenTimestamp = timestamp;
+        return mWindowStart + mSize;
+    }
+
+    /**
+     * Ensures that the passed number of rows can be appended without overwrite the rows
+     * of the views sharing the same storage, reallocating the storage if needed.
+     */
+    void ensureFreeCapacity(int count) {
+        // Evicted rows are still in use while retained by other views
+        final int used = mSize + (int) (mEvicted - mRetained);
+        if (mCapacity - used >= count) {
+            return;
+        }
+        // Leave enough room to amortize the copy of the rows
+        reallocate(Math.max(mCapacity, mSize + (mSize >> 1) + count));
+    }
+
+    /**
+     * Evicts the oldest rows of the data.
+     */
+    void evict(int count) {
+        if (count > mSize) {
+            closeOpenRow();
+        }
+        count = Math.min(count, mSize);
+        mHead = (mHead + count) % mCapacity;
+        mSize -= count;
+        mEvicted += count;
+        if (!mShared) {
+            mRetained = mEvicted;
+        }
+    }
+
+    private int position(int row) {
+        final int position = mHead + row;
+        return position >= mCapacity ? position - mCapacity : position;
+    }
+
+    private void closeOpenRow() {
+        if (mOpen) {
+            mOpen = false;
+            final int row = append(mOpenTimestamp) - mWindowStart;
+            final int position = position(row) * mSeries;
+            System.arraycopy(mOpenValues, 0, mValues, position, mSeries);
+            mTickFormats[position(row)] = mOpenTickFormat;
+        }
+    }
+
+    private void unshare() {
+        if (mShared || mHead != 0) {
+            // Ensure we own a contiguous storage before modifying the existing rows
+            reallocate(mCapacity);
+        }
+    }
+
+    private void reallocate(int capacity) {
+        final TimelineData src = new TimelineData(this);
+        allocate(capacity);
+        src.copyRows(this);
+        mHead = 0;
+        mShared = false;
+        mRetained = mEvicted;
+    }
+
+    private void allocate(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity * mSeries];
+        mTickFormats = new byte[capacity];
+    }
+
+    private void copyRows(TimelineData dst) {
+        for (int row = 0; row < mSize; ) {
+            final int position = position(row);
+            final int count = Math.min(mSize - row, mCapacity - position);
+            System.arraycopy(mTimestamps, position, dst.mTimestamps, row, count);
+            System.arraycopy(mValues, position * mSeries, dst.mValues,
+                    row * mSeries, count * mSeries);
+            System.arraycopy(mTickFormats, position, dst.mTickFormats, row, count);
+            row += count;
+        }
+    }
+}
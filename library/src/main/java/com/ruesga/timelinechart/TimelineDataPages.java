@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * A LRU cache of pages of rows read from a cursor, bounded by the memory used by
+ * the pages (in bytes). Pages are keyed by their index ({@code row / PAGE_SIZE}).
+ */
+final class TimelineDataPages extends LruCache<Integer, TimelineData> {
+
+    /** The number of rows of a page. */
+    static final int PAGE_SIZE = CursorBlockReader.BLOCK_SIZE;
+
+    TimelineDataPages(int maxSize) {
+        super(maxSize);
+    }
+
+    @Override
+    protected int sizeOf(Integer key, TimelineData page) {
+        // timestamp + values + tick format of every row
+        return page.size() * (9 + (page.series() * 8));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+/**
+ * A multi-resolution pyramid of the series of a {@link TimelineData}. Every level
+ * {@code L} (starting at 1) aggregates the max, sum and count of the values of
+ * every serie in buckets of {@code 2^L} rows.<p />
+ *
+ * Buckets are aligned to the absolute index of the rows (including the evicted ones), so
+ * the pyramid can be updated incrementally while rows are appended to and evicted from
+ * the data. Like the data, the buckets of every level are stored in a ring buffer that
+ * can be {@link #share() shared} between views. A view only reads the buckets completely
+ * covered by its rows; any other bucket must be aggregated from the rows of the data. The
+ * open row of the data (if any) is never aggregated in the pyramid.
+ */
+final class TimelineDataPyramid {
+
+    private final TimelineData mData;
+    private final int mSeries;
+    private final int mDataModCount;
+    private final int mLevels;
+    private final int[] mCapacities;
+    private final double[][] mMax;
+    private final double[][] mSum;
+    private final int[][] mCount;
+    private long mStart;
+    private long mEnd;
+
+    private TimelineDataPyramid(TimelineData data) {
+        final int series = data.series();
+        final int dataCapacity = data.capacity();
+        mData = data;
+        mSeries = series;
+        mDataModCount = data.modCount();
+
+        int levels = 1;
+        while ((1 << levels) < dataCapacity) {
+            levels++;
+        }
+        mLevels = levels;
+        mCapacities = new int[levels];
+        mMax = new double[levels][];
+        mSum = new double[levels][];
+        mCount = new int[levels][];
+        for (int i = 0; i < levels; i++) {
+            // Room for the buckets of the rows of the data plus the partial ones at the edges
+            final int capacity = (dataCapacity >> (i + 1)) + 4;
+            mCapacities[i] = capacity;
+            mMax[i] = new double[capacity * series];
+            mSum[i] = new double[capacity * series];
+            mCount[i] = new int[capacity];
+        }
+    }
+
+    private TimelineDataPyramid(TimelineDataPyramid src) {
+        mData = src.mData;
+        mSeries = src.mSeries;
+        mDataModCount = src.mDataModCount;
+        mLevels = src.mLevels;
+        mCapacities = src.mCapacities;
+        mMax = src.mMax;
+        mSum = src.mSum;
+        mCount = src.mCount;
+        mStart = src.mStart;
+        mEnd = src.mEnd;
+    }
+
+    /**
+     * Returns a pyramid of the data passed as argument, updating incrementally the pyramid
+     * of a previous view of the same storage when possible.
+     */
+    static TimelineDataPyramid update(TimelineDataPyramid pyramid, TimelineData data) {
+        final long start = data.evicted() + data.windowStart();
+        if (pyramid == null || !pyramid.mData.sharesStorage(data)
+                || pyramid.mDataModCount != data.modCount()
+                || start < pyramid.mStart || start > pyramid.mEnd) {
+            // Not the same rows. Build the pyramid from scratch
+            pyramid = new TimelineDataPyramid(data);
+            pyramid.mStart = pyramid.mEnd = start;
+        } else {
+            pyramid = pyramid.share();
+        }
+        pyramid.appendRows(data);
+        return pyramid;
+    }
+
+    /**
+     * Returns a view which shares the same storage than this pyramid.
+     */
+    TimelineDataPyramid share() {
+        return new TimelineDataPyramid(this);
+    }
+
+    /**
+     * Returns the number of levels of the pyramid.
+     */
+    int levels() {
+        return mLevels;
+    }
+
+    /**
+     * Returns whether the bucket passed as argument is completely covered by the rows of
+     * the view (so it can be read from the pyramid).
+     */
+    boolean isComplete(int level, long bucket) {
+        return (bucket << level) >= mStart && ((bucket + 1) << level) <= mEnd;
+    }
+
+    double maxAt(int level, long bucket, int serie) {
+        return mMax[level - 1][position(level, bucket) * mSeries + serie];
+    }
+
+    double sumAt(int level, long bucket, int serie) {
+        return mSum[level - 1][position(level, bucket) * mSeries + serie];
+    }
+
+    int countAt(int level, long bucket) {
+        return mCount[level - 1][position(level, bucket)];
+    }
+
+    private void appendRows(TimelineData data) {
+        final long evicted = data.evicted();
+        final long start = evicted + data.windowStart();
+        final long end = evicted + data.storedEnd();
+        final boolean empty = mStart == mEnd;
+        for (long row = Math.max(mEnd, start); row < end; row++) {
+            appendRow(data, row, empty && row == mEnd);
+        }
+        mStart = start;
+        mEnd = Math.max(mEnd, end);
+    }
+
+    private void appendRow(TimelineData data, long row, boolean first) {
+        final int dataRow = (int) (row - data.evicted());
+        for (int level = 1; level <= mLevels; level++) {
+            final long bucket = row >> level;
+            final int position = position(level, bucket);
+            final int offset = position * mSeries;
+            final double[] max = mMax[level - 1];
+            final double[] sum = mSum[level - 1];
+            final int[] count = mCount[level - 1];
+
+            // Start a new bucket if the row is the first one of the bucket (or of the pyramid)
+            final boolean reset = first || (bucket << level) == row;
+            for (int i = 0; i < mSeries; i++) {
+                final double v = data.valueAt(dataRow, i);
+                if (reset) {
+                    max[offset + i] = v;
+                    sum[offset + i] = v;
+                } else {
+                    max[offset + i] = Math.max(max[offset + i], v);
+                    sum[offset + i] += v;
+                }
+            }
+            count[position] = reset ? 1 : count[position] + 1;
+        }
+    }
+
+    private int position(int level, long bucket) {
+        return (int) (bucket % mCapacities[level - 1]);
+    }
+}
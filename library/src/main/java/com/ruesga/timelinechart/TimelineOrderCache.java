@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import com.ruesga.timelinechart.helpers.ArraysHelper;
+
+import java.util.Arrays;
+
+/**
+ * A cache of the draw order of the series of the rows of a {@link TimelineData} (the
+ * series sorted ascending by value). The order of a row is computed the first time
+ * it's requested, so rows never displayed are never sorted.<p />
+ *
+ * Orders are cached in a direct-mapped table keyed by the absolute index of the rows,
+ * so they survive while rows are appended to and evicted from a shared storage. The
+ * open row of the data (if any) is sorted again on every bind, since it can change.
+ * Orders are stored in bytes, so rows with more series than {@link #MAX_CACHED_SERIES}
+ * aren't cached: they are sorted every time they are drawn.<p />
+ *
+ * This class is not thread-safe. It must only be used from the UI thread.
+ */
+final class TimelineOrderCache {
+
+    /** The max number of series whose orders are cached (orders are stored in bytes). */
+    static final int MAX_CACHED_SERIES = 256;
+
+    private static final int MIN_CAPACITY = 64;
+
+    private TimelineData mData;
+    private int mModCount;
+    private int mSeries;
+    private int mMask;
+    private long[] mRows = new long[0];
+    private byte[] mOrders = new byte[0];
+    private byte[] mOpenOrder = new byte[0];
+    private boolean mOpenSorted;
+    private double[] mValues = new double[0];
+    private int[] mIndexes = new int[0];
+    private int mSortedRow = -1;
+
+    /**
+     * Binds the cache to the data passed as argument, discarding the cached orders if
+     * the rows of the data aren't the same than the cached ones.
+     *
+     * @param rows the max number of rows displayed at the same time.
+     */
+    void bind(TimelineData data, int rows) {
+        final int series = data.series();
+        int capacity = MIN_CAPACITY;
+        while (capacity < rows * 2) {
+            capacity <<= 1;
+        }
+        if (series > MAX_CACHED_SERIES) {
+            if (series != mSeries) {
+                mSeries = series;
+                mRows = new long[0];
+                mOrders = new byte[0];
+                mOpenOrder = new byte[0];
+                mValues = new double[series];
+                mIndexes = new int[series];
+            }
+        } else if (series != mSeries || capacity > mRows.length) {
+            mSeries = series;
+            mMask = capacity - 1;
+            mRows = new long[capacity];
+            mOrders = new byte[capacity * series];
+            mOpenOrder = new byte[series];
+            mValues = new double[series];
+            mIndexes = new int[series];
+            Arrays.fill(mRows, -1);
+        } else if (mData == null || !mData.sharesStorage(data)
+                || mModCount != data.modCount()) {
+            Arrays.fill(mRows, -1);
+        }
+        mData = data;
+        mModCount = data.modCount();
+        mOpenSorted = false;
+        mSortedRow = -1;
+    }
+
+    /**
+     * Returns the serie drawn at the position passed as argument of a row of the bound data.
+     */
+    int orderAt(int row, int position) {
+        final TimelineData data = mData;
+        if (mSeries > MAX_CACHED_SERIES) {
+            // Not cached. The row is only sorted once for all its positions
+            if (mSortedRow != row) {
+                sort(data, row);
+                mSortedRow = row;
+            }
+            return mIndexes[position];
+        }
+        if (row >= data.storedEnd()) {
+            if (!mOpenSorted) {
+                sort(data, row, mOpenOrder, 0);
+                mOpenSorted = true;
+            }
+            return mOpenOrder[position] & 0xff;
+        }
+
+        final long key = data.evicted() + row;
+        final int slot = (int) (key & mMask);
+        final int offset = slot * mSeries;
+        if (mRows[slot] != key) {
+            sort(data, row, mOrders, offset);
+            mRows[slot] = key;
+        }
+        return mOrders[offset + position] & 0xff;
+    }
+
+    private void sort(TimelineData data, int row, byte[] orders, int offset) {
+        sort(data, row);
+        final int series = mSeries;
+        for (int i = 0; i < series; i++) {
+            orders[offset + i] = (byte) mIndexes[i];
+        }
+    }
+
+    private void sort(TimelineData data, int row) {
+        final int series = mSeries;
+        for (int i = 0; i < series; i++) {
+            mValues[i] = data.valueAt(row, i);
+            mIndexes[i] = i;
+        }
+        ArraysHelper.sort(mValues, mIndexes, series);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of bitmap tiles of the rasterized chart. Every tile holds a fixed number
+ * of items, and it's keyed by its index (the absolute index of its first item divided by
+ * the items per tile) and the generation of the content it was rendered for. Tiles of old
+ * generations are reused for new ones, so bitmaps are only allocated until the pool
+ * is full.<p />
+ *
+ * Tiles are rendered by the background thread ({@link #obtain(int, long)} and
+ * {@link #publish(Tile)}) and composed by the UI thread, so every method is synchronized.
+ * A tile is never handed to the renderer while it's visible, and never drawn while it's
+ * being rendered.
+ */
+final class TimelineTileCache {
+
+    static final class Tile {
+        Bitmap mBitmap;
+        int mGeneration;
+        long mIndex;
+        boolean mReady;
+        boolean mRendering;
+        boolean mDiscarded;
+        long mLastUsed;
+    }
+
+    private final List<Tile> mTiles = new ArrayList<>();
+    private int mTileWidth;
+    private int mTileHeight;
+    private int mMaxTiles;
+    private long mClock;
+
+    // The visible tiles of the current generation
+    private int mVisibleGeneration;
+    private long mFirstVisible = Long.MAX_VALUE;
+    private long mLastVisible = Long.MIN_VALUE;
+
+    /**
+     * Sets the size of the tiles and the max number of tiles of the pool. All the tiles
+     * are discarded if the size changed.
+     */
+    synchronized void configure(int tileWidth, int tileHeight, int maxTiles) {
+        if (mTileWidth != tileWidth || mTileHeight != tileHeight) {
+            release();
+            mTileWidth = tileWidth;
+            mTileHeight = tileHeight;
+        }
+        mMaxTiles = maxTiles;
+    }
+
+    synchronized int tileWidth() {
+        return mTileWidth;
+    }
+
+    synchronized int tileHeight() {
+        return mTileHeight;
+    }
+
+    /**
+     * Draws the tiles in the range passed as argument, if all of them are ready.
+     *
+     * @param left the position of the left edge of the first tile.
+     * @param step the distance between the left edges of two consecutive tiles.
+     * @return the number of tiles drawn, or -1 if some of them aren't rendered yet.
+     */
+    synchronized int draw(Canvas c, int generation, long first, long last,
+            float left, float top, float step, Paint paint) {
+        mVisibleGeneration = generation;
+        mFirstVisible = first;
+        mLastVisible = last;
+        for (long index = first; index <= last; index++) {
+            if (find(generation, index) == null) {
+                return -1;
+            }
+        }
+        final long clock = ++mClock;
+        for (long index = first; index <= last; index++) {
+            final Tile tile = find(generation, index);
+            tile.mLastUsed = clock;
+            c.drawBitmap(tile.mBitmap, left + (step * (index - first)), top, paint);
+        }
+        return (int) (last - first + 1);
+    }
+
+    synchronized boolean contains(int generation, long index) {
+        for (Tile tile : mTiles) {
+            if (tile.mGeneration == generation && tile.mIndex == index
+                    && (tile.mReady || tile.mRendering)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a cleared tile to render the content passed as argument, or null if all
+     * the tiles of the pool are in use.
+     */
+    synchronized Tile obtain(int generation, long index) {
+        if (mTileWidth <= 0 || mTileHeight <= 0 || contains(generation, index)) {
+            return null;
+        }
+
+        Tile tile = null;
+        if (mTiles.size() < mMaxTiles) {
+            tile = new Tile();
+            tile.mBitmap = Bitmap.createBitmap(mTileWidth, mTileHeight, Bitmap.Config.ARGB_8888);
+            mTiles.add(tile);
+        } else {
+            // Reuse the least recently used tile, preferring the ones of old generations
+            for (Tile t : mTiles) {
+                if (t.mRendering || isVisible(t)) {
+                    continue;
+                }
+                if (tile == null || isBetterVictim(t, tile, generation)) {
+                    tile = t;
+                }
+            }
+            if (tile == null) {
+                return null;
+            }
+            tile.mBitmap.eraseColor(0);
+        }
+        tile.mGeneration = generation;
+        tile.mIndex = index;
+        tile.mReady = false;
+        tile.mRendering = true;
+        return tile;
+    }
+
+    /**
+     * Publishes a rendered tile, so it can be drawn.
+     */
+    synchronized void publish(Tile tile) {
+        tile.mRendering = false;
+        if (tile.mDiscarded) {
+            tile.mBitmap.recycle();
+            return;
+        }
+        tile.mReady = true;
+        tile.mLastUsed = ++mClock;
+    }
+
+    /**
+     * Releases the tiles that aren't visible (or all of them if required) as a response
+     * to memory pressure.
+     */
+    synchronized void trim(boolean all) {
+        for (int i = mTiles.size() - 1; i >= 0; i--) {
+            final Tile tile = mTiles.get(i);
+            if (all || !isVisible(tile)) {
+                mTiles.remove(i);
+                discard(tile);
+            }
+        }
+    }
+
+    synchronized void release() {
+        trim(true);
+    }
+
+    private Tile find(int generation, long index) {
+        for (Tile tile : mTiles) {
+            if (tile.mReady && tile.mGeneration == generation && tile.mIndex == index) {
+                return tile;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isBetterVictim(Tile tile, Tile victim, int generation) {
+        final boolean old = tile.mGeneration != generation;
+        if (old != (victim.mGeneration != generation)) {
+            return old;
+        }
+        return tile.mLastUsed < victim.mLastUsed;
+    }
+
+    private boolean isVisible(Tile tile) {
+        return tile.mGeneration == mVisibleGeneration
+                && tile.mIndex >= mFirstVisible && tile.mIndex <= mLastVisible;
+    }
+
+    private void discard(Tile tile) {
+        tile.mReady = false;
+        if (tile.mRendering) {
+            // Recycled once rendered
+            tile.mDiscarded = true;
+        } else {
+            tile.mBitmap.recycle();
+        }
+    }
+}
@@ -24,16 +24,60 @@ public class ArraysHelper {
      * Perform a sort operation over the values array and update the indexes array.
      */
     public static void sort(double[] values, int[] indexes) {
-        int i = 0;
-        int count = values.length;
-        for (; i < count; i++) {
-            if (i == (count - 1)) return;
-            double v1 = values[i], v2 = values[i + 1];
-            int i1 = indexes[i], i2 = indexes[i + 1];
-            if (v1 <= v2) continue;
+        sort(values, indexes, values.length);
+    }
+
+    /**
+     * Perform a stable sort operation over the first count items of the values array and
+     * update the indexes array. Small arrays (the usual number of series) are sorted with
+     * a sorting network; any other with an insertion sort.
+     */
+    public static void sort(double[] values, int[] indexes, int count) {
+        switch (count) {
+            case 0:
+            case 1:
+                return;
+            case 2:
+                compareAndSwap(values, indexes, 0);
+                return;
+            case 3:
+                compareAndSwap(values, indexes, 0);
+                compareAndSwap(values, indexes, 1);
+                compareAndSwap(values, indexes, 0);
+                return;
+            case 4:
+                compareAndSwap(values, indexes, 0);
+                compareAndSwap(values, indexes, 2);
+                compareAndSwap(values, indexes, 1);
+                compareAndSwap(values, indexes, 0);
+                compareAndSwap(values, indexes, 2);
+                compareAndSwap(values, indexes, 1);
+                return;
+            default:
+                break;
+        }
+
+        for (int i = 1; i < count; i++) {
+            final double v = values[i];
+            final int index = indexes[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > v) {
+                values[j + 1] = values[j];
+                indexes[j + 1] = indexes[j];
+                j--;
+            }
+            values[j + 1] = v;
+            indexes[j + 1] = index;
+        }
+    }
+
+    // Only adjacent items are swapped, so the networks are stable
+    private static void compareAndSwap(double[] values, int[] indexes, int i) {
+        final double v1 = values[i], v2 = values[i + 1];
+        if (v1 > v2) {
+            final int i1 = indexes[i];
             values[i] = v2; values[i + 1] = v1;
-            indexes[i] = i2; indexes[i + 1] = i1;
-            i = -1;
+            indexes[i] = indexes[i + 1]; indexes[i + 1] = i1;
         }
     }
 }
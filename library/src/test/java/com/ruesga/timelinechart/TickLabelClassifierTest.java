@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TickLabelClassifierTest {
+
+    private static final long MINUTE = 60000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    // Zones with DST transitions, non-hour offsets, or both
+    private static final String[] ZONES = {
+            "UTC", "Europe/Madrid", "America/New_York", "America/Sao_Paulo",
+            "Asia/Kolkata", "Asia/Kathmandu", "America/St_Johns", "Australia/Adelaide",
+            "Australia/Lord_Howe", "Pacific/Chatham", "Europe/Amsterdam"};
+
+    private static final int[] YEARS = {1937, 1969, 2015, 2016};
+
+    /**
+     * The classification of the view before {@link TickLabelClassifier} (based on
+     * a {@link Calendar}).
+     */
+    private static int classifyWithCalendar(Calendar calendar, long timestamp) {
+        calendar.setTimeInMillis(timestamp);
+        final int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        final int minute = calendar.get(Calendar.MINUTE);
+        final int second = calendar.get(Calendar.SECOND);
+        final int millisecond = calendar.get(Calendar.MILLISECOND);
+        if (hour == 0 && minute == 0 && second == 0 && millisecond == 0) {
+            return TickLabelClassifier.DAY_FORMAT;
+        }
+        if (second == 0 && millisecond == 0) {
+            return TickLabelClassifier.HOUR_MINUTES_FORMAT;
+        }
+        return TickLabelClassifier.SECONDS_FORMAT;
+    }
+
+    /**
+     * Returns the timestamps around the transitions and the local midnights of a year.
+     */
+    private static List<Long> createTimestamps(TimeZone timeZone, int year) {
+        final List<Long> timestamps = new ArrayList<>();
+        final Calendar calendar = new GregorianCalendar(timeZone);
+        calendar.clear();
+        calendar.set(year, Calendar.JANUARY, 1);
+        final long start = calendar.getTimeInMillis();
+        calendar.add(Calendar.YEAR, 1);
+        final long end = calendar.getTimeInMillis();
+
+        // Every minute (and some seconds) around the transitions of the year
+        for (long t = start; t < end; t += HOUR) {
+            if (timeZone.getOffset(t) != timeZone.getOffset(t + HOUR)) {
+                for (long m = t - 3 * HOUR; m <= t + 4 * HOUR; m += MINUTE) {
+                    timestamps.add(m);
+                    timestamps.add(m + 1000);
+                    timestamps.add(m - 1);
+                }
+            }
+        }
+
+        // The local midnights of the year
+        calendar.setTimeInMillis(start);
+        while (calendar.getTimeInMillis() < end) {
+            final long midnight = calendar.getTimeInMillis();
+            timestamps.add(midnight);
+            timestamps.add(midnight - 1);
+            timestamps.add(midnight + MINUTE);
+            timestamps.add(midnight + 30 * MINUTE);
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return timestamps;
+    }
+
+    private static void assertSameClassification(TimeZone timeZone, List<Long> timestamps) {
+        final TickLabelClassifier classifier = new TickLabelClassifier(timeZone);
+        final Calendar calendar = new GregorianCalendar(timeZone);
+        for (long timestamp : timestamps) {
+            assertEquals(timeZone.getID() + " at " + timestamp,
+                    classifyWithCalendar(calendar, timestamp), classifier.classify(timestamp));
+        }
+    }
+
+    @Test
+    public void matchesCalendarAroundTransitionsAndMidnights() {
+        for (String id : ZONES) {
+            final TimeZone timeZone = TimeZone.getTimeZone(id);
+            assertEquals(id, timeZone.getID());
+            for (int year : YEARS) {
+                assertSameClassification(timeZone, createTimestamps(timeZone, year));
+            }
+        }
+    }
+
+    @Test
+    public void matchesCalendarInRandomOrder() {
+        // Days are classified out of order, so the cached days are replaced
+        final Random random = new Random(42);
+        for (String id : ZONES) {
+            final TimeZone timeZone = TimeZone.getTimeZone(id);
+            final List<Long> timestamps = new ArrayList<>();
+            for (int year : YEARS) {
+                timestamps.addAll(createTimestamps(timeZone, year));
+            }
+            Collections.shuffle(timestamps, random);
+            assertSameClassification(timeZone, timestamps);
+        }
+    }
+
+    @Test
+    public void classifiesLocalTimesOfNonHourOffsets() {
+        final TimeZone timeZone = TimeZone.getTimeZone("Asia/Kathmandu");
+        final Calendar calendar = new GregorianCalendar(timeZone);
+        calendar.clear();
+        calendar.set(2016, Calendar.MARCH, 1);
+        final long midnight = calendar.getTimeInMillis();
+        assertTrue(midnight % HOUR != 0);
+
+        final TickLabelClassifier classifier = new TickLabelClassifier(timeZone);
+        assertEquals(TickLabelClassifier.DAY_FORMAT, classifier.classify(midnight));
+        assertEquals(TickLabelClassifier.HOUR_MINUTES_FORMAT,
+                classifier.classify(midnight + 15 * MINUTE));
+        assertEquals(TickLabelClassifier.SECONDS_FORMAT, classifier.classify(midnight + 1000));
+    }
+}
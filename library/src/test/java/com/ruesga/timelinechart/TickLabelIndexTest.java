@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TickLabelIndexTest {
+
+    @Test
+    public void keysAreMappedToDistinctEntries() {
+        final TickLabelIndex index = new TickLabelIndex(64);
+        for (int i = 0; i < 64; i++) {
+            assertEquals(-1, index.find(i % 3, i * 1000L));
+            assertEquals(i, index.add(i % 3, i * 1000L));
+        }
+        assertTrue(index.isFull());
+        for (int i = 0; i < 64; i++) {
+            assertEquals(i, index.find(i % 3, i * 1000L));
+            assertEquals(-1, index.find((i + 1) % 3, i * 1000L));
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsReplaced() {
+        final TickLabelIndex index = new TickLabelIndex(4);
+        for (int i = 0; i < 4; i++) {
+            index.add(0, i);
+        }
+        index.touch(index.find(0, 0));
+        index.touch(index.find(0, 2));
+
+        // 1 and 3 are the least recently used keys
+        assertEquals(1, index.add(0, 10));
+        assertEquals(-1, index.find(0, 1));
+        assertEquals(3, index.add(0, 11));
+        assertEquals(-1, index.find(0, 3));
+        assertEquals(0, index.add(0, 12));
+        assertEquals(-1, index.find(0, 0));
+        assertEquals(2, index.find(0, 2));
+        assertEquals(1, index.find(0, 10));
+    }
+
+    @Test
+    public void collidingKeysAreFound() {
+        // Timestamps that only differ in the high bits hash to the same bucket
+        final TickLabelIndex index = new TickLabelIndex(8);
+        for (int i = 0; i < 8; i++) {
+            index.add(1, ((long) i << 32) | i);
+        }
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, index.find(1, ((long) i << 32) | i));
+        }
+        assertEquals(-1, index.find(1, 1L << 32));
+        assertFalse(new TickLabelIndex(8).isFull());
+    }
+}
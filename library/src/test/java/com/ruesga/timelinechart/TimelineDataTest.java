@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimelineDataTest {
+
+    private static final double DELTA = 0d;
+
+    private static TimelineData createData(int series, int capacity, int rows) {
+        final TimelineData data = new TimelineData(series, capacity);
+        for (int i = 0; i < rows; i++) {
+            appendRow(data, i);
+        }
+        return data;
+    }
+
+    private static void appendRow(TimelineData data, long timestamp) {
+        final int row = data.append(timestamp);
+        data.setTickFormat(row, (int) (timestamp % 4));
+        for (int i = 0; i < data.series(); i++) {
+            data.setValue(row, i, timestamp * 10 + i);
+        }
+    }
+
+    private static void assertRows(TimelineData data, long first, long last) {
+        assertEquals(last - first + 1, data.size());
+        for (int row = 0; row < data.size(); row++) {
+            final long timestamp = first + row;
+            assertEquals(timestamp, data.timestampAt(row));
+            assertEquals((int) (timestamp % 4), data.tickFormatAt(row));
+            for (int i = 0; i < data.series(); i++) {
+                assertEquals(timestamp * 10 + i, data.valueAt(row, i), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void appendedRowsAreReadBack() {
+        final TimelineData data = createData(3, 0, 40);
+        assertRows(data, 0, 39);
+        assertEquals(39, data.lastTimestamp());
+        assertEquals(0, data.evicted());
+    }
+
+    @Test
+    public void evictedRowsAreReusedByTheRing() {
+        final TimelineData data = createData(2, 16, 16);
+        data.evict(5);
+        assertEquals(5, data.evicted());
+        assertRows(data, 5, 15);
+
+        // The new rows wrap around the end of the storage, without growing it
+        for (int i = 16; i < 21; i++) {
+            appendRow(data, i);
+        }
+        assertEquals(16, data.capacity());
+        assertRows(data, 5, 20);
+    }
+
+    @Test
+    public void indexOfFindsRowsOfWrappedRing() {
+        final TimelineData data = new TimelineData(1, 16);
+        for (int i = 0; i < 16; i++) {
+            appendRow(data, i * 10);
+        }
+        data.evict(10);
+        for (int i = 16; i < 22; i++) {
+            appendRow(data, i * 10);
+        }
+        assertEquals(16, data.capacity());
+        for (int row = 0; row < data.size(); row++) {
+            assertEquals(row, data.indexOf(data.timestampAt(row)));
+            assertEquals(~(row + 1), data.indexOf(data.timestampAt(row) + 5));
+        }
+        assertEquals(~0, data.indexOf(0));
+    }
+
+    @Test
+    public void putKeepsRowsSorted() {
+        final TimelineData data = new TimelineData(1, 0);
+        final long[] timestamps = {50, 10, 40, 20, 30, 60, 0};
+        for (long timestamp : timestamps) {
+            final int row = data.put(timestamp);
+            data.setValue(row, 0, timestamp);
+        }
+        assertEquals(timestamps.length, data.size());
+        for (int row = 0; row < data.size(); row++) {
+            assertEquals(row * 10, data.timestampAt(row));
+            assertEquals(row * 10, data.valueAt(row, 0), DELTA);
+        }
+        assertEquals(3, data.put(30));
+    }
+
+    @Test
+    public void copiedRowsAreReadBack() {
+        final TimelineData src = createData(2, 0, 10);
+        final TimelineData copy = new TimelineData(2, 0);
+        for (int row = 0; row < src.size(); row++) {
+            copy.copyRow(copy.append(src.timestampAt(row)), src, row);
+        }
+        appendRow(copy, 10);
+        assertRows(src, 0, 9);
+        assertRows(copy, 0, 10);
+    }
+
+    @Test
+    public void rowsAppendedToSharedViewAreNotVisibleBySource() {
+        final TimelineData src = createData(2, 32, 10);
+        final TimelineData view = src.share();
+        for (int i = 10; i < 20; i++) {
+            appendRow(view, i);
+        }
+        assertTrue(view.sharesStorage(src));
+        assertRows(src, 0, 9);
+        assertRows(view, 0, 19);
+    }
+
+    @Test
+    public void modifiedSharedViewCopiesTheStorage() {
+        final TimelineData src = createData(2, 32, 10);
+        final TimelineData view = src.share();
+        final int row = view.put(5);
+        view.setValue(row, 0, -1d);
+        assertFalse(view.sharesStorage(src));
+        assertEquals(-1d, view.valueAt(5, 0), DELTA);
+        assertRows(src, 0, 9);
+        assertTrue(view.modCount() > src.modCount());
+    }
+
+    @Test
+    public void evictionOfSharedViewDoesNotAffectSource() {
+        final TimelineData src = createData(1, 32, 20);
+        final TimelineData view = src.share();
+        view.evict(15);
+        assertRows(view, 15, 19);
+        assertRows(src, 0, 19);
+    }
+
+    @Test
+    public void appendsToSharedViewNeverOverwriteRetainedRows() {
+        // Several batches appended and evicted over the same storage, while the first
+        // data is still published
+        final TimelineData published = createData(1, 32, 16);
+        TimelineData pending = published;
+        for (int batch = 0; batch < 8; batch++) {
+            final TimelineData data = pending.share();
+            data.retain(published);
+            final long last = data.lastTimestamp();
+            for (int i = 1; i <= 4; i++) {
+                appendRow(data, last + i);
+            }
+            data.evict(4);
+            assertRows(data, data.evicted(), last + 4);
+            pending = data;
+        }
+        assertRows(published, 0, 15);
+        assertRows(pending, 32, 47);
+    }
+
+    @Test
+    public void evictedRowsAreReusedOnceNotRetained() {
+        final TimelineData src = createData(1, 16, 16);
+        final TimelineData view = src.share();
+        view.evict(8);
+        appendRow(view, 16);
+        assertFalse(view.sharesStorage(src));
+        assertRows(src, 0, 15);
+
+        // The view owns its storage now, so evicted rows are reused
+        final int capacity = view.capacity();
+        view.evict(view.size());
+        for (int i = 0; i < capacity; i++) {
+            appendRow(view, 17 + i);
+        }
+        assertEquals(capacity, view.capacity());
+        assertRows(view, 17, 16 + capacity);
+    }
+
+    @Test
+    public void openRowIsOwnedByEveryView() {
+        final TimelineData src = createData(1, 32, 5);
+        final int row = src.appendOpen(5);
+        src.setValue(row, 0, 1d);
+        assertTrue(src.isOpen());
+        assertEquals(6, src.size());
+        assertEquals(5, src.storedEnd());
+
+        final TimelineData view = src.share();
+        view.setValue(row, 0, 2d);
+        assertEquals(1d, src.valueAt(row, 0), DELTA);
+        assertEquals(2d, view.valueAt(row, 0), DELTA);
+
+        // Appending to the view moves its open row to the storage
+        appendRow(view, 6);
+        assertFalse(view.isOpen());
+        assertEquals(2d, view.valueAt(5, 0), DELTA);
+        assertEquals(6, view.timestampAt(6));
+        assertTrue(src.isOpen());
+        assertEquals(1d, src.valueAt(row, 0), DELTA);
+        assertEquals(6, src.size());
+    }
+
+    @Test
+    public void evictingPastTheStorageClosesTheOpenRow() {
+        final TimelineData data = createData(1, 16, 3);
+        data.appendOpen(3);
+        data.evict(4);
+        assertFalse(data.isOpen());
+        assertEquals(0, data.size());
+        assertEquals(4, data.evicted());
+    }
+
+    @Test
+    public void windowedRowsAreReadAndWrittenByTheirIndexInTheWholeData() {
+        final TimelineData data = new TimelineData(2, 0);
+        for (int i = 100; i < 110; i++) {
+            final int row = data.append(i);
+            data.setValue(row, 0, i);
+        }
+        data.setWindow(100, 1000);
+        assertEquals(1000, data.size());
+        assertTrue(data.isLoaded(100));
+        assertFalse(data.isLoaded(110));
+
+        for (int row = 100; row < 110; row++) {
+            data.setValue(row, 1, -row);
+            data.setTickFormat(row, row % 4);
+        }
+        for (int row = 100; row < 110; row++) {
+            assertEquals(row, data.timestampAt(row));
+            assertEquals(row, data.valueAt(row, 0), DELTA);
+            assertEquals(-row, data.valueAt(row, 1), DELTA);
+            assertEquals(row % 4, data.tickFormatAt(row));
+            assertEquals(row, data.indexOf(row));
+        }
+
+        final TimelineData copy = new TimelineData(2, 0);
+        copy.copyRow(copy.append(103), data, 103);
+        assertEquals(103, copy.valueAt(0, 0), DELTA);
+        assertEquals(-103, copy.valueAt(0, 1), DELTA);
+        assertEquals(3, copy.tickFormatAt(0));
+    }
+}
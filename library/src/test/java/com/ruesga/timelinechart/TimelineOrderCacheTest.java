@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.timelinechart;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimelineOrderCacheTest {
+
+    private static TimelineData createData(int series, int rows) {
+        // Values descend by serie in the even rows and ascend in the odd ones
+        final TimelineData data = new TimelineData(series, 0);
+        for (int i = 0; i < rows; i++) {
+            final int row = data.append(i);
+            for (int j = 0; j < series; j++) {
+                data.setValue(row, j, i % 2 == 0 ? series - j : j);
+            }
+        }
+        return data;
+    }
+
+    private static void assertOrders(TimelineOrderCache cache, int series, int rows) {
+        for (int row = 0; row < rows; row++) {
+            for (int position = 0; position < series; position++) {
+                assertEquals(row % 2 == 0 ? series - 1 - position : position,
+                        cache.orderAt(row, position));
+            }
+        }
+    }
+
+    @Test
+    public void rowsAreSortedAscendingByValue() {
+        final TimelineData data = createData(4, 10);
+        final TimelineOrderCache cache = new TimelineOrderCache();
+        cache.bind(data, 10);
+        assertOrders(cache, 4, 10);
+        // Cached orders are the same
+        assertOrders(cache, 4, 10);
+    }
+
+    @Test
+    public void rowsWithMoreSeriesThanCachedAreSorted() {
+        final int series = TimelineOrderCache.MAX_CACHED_SERIES + 44;
+        final TimelineData data = createData(series, 6);
+        final TimelineOrderCache cache = new TimelineOrderCache();
+        cache.bind(data, 6);
+        assertOrders(cache, series, 6);
+
+        // Back to a number of series whose orders are cached
+        final TimelineData other = createData(3, 6);
+        cache.bind(other, 6);
+        assertOrders(cache, 3, 6);
+    }
+}